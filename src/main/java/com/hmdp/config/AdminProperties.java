@@ -0,0 +1,25 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 管理员配置，对应application.yaml中的hmdp.admin
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.admin")
+public class AdminProperties {
+
+    /**
+     * 管理员的用户id，只有这些用户可以调用补充库存等运维接口，为空时所有人都不能调用
+     */
+    private Set<Long> userIds = new HashSet<>();
+}
@@ -0,0 +1,24 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_SHOP_KEY;
+
+@Configuration
+public class BloomFilterConfig {
+
+    @Bean
+    @ConditionalOnProperty(prefix = "hmdp.cache.bloom", name = "enabled", havingValue = "true")
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            RedisMessageListenerContainer listenerContainer, CacheProperties cacheProperties) {
+        // 商铺id布隆过滤器，防止查询不存在的商铺穿透到数据库
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        return new RedisBloomFilter(stringRedisTemplate, listenerContainer, BLOOM_SHOP_KEY,
+                config.getExpectedInsertions(), config.getFpp(), config.getNegativeCacheTtl());
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 缓存（CacheClient）相关配置，对应application.yaml中的hmdp.cache
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 写入缓存时有效期增加的随机比例，例如0.1表示在原有效期上随机增加0~10%，0表示不增加
+     */
+    private double ttlJitter = 0.1;
+
+    /**
+     * 提前刷新相关配置
+     */
+    private EarlyRefresh earlyRefresh = new EarlyRefresh();
+
+    /**
+     * 进程内一级缓存相关配置
+     */
+    private Local local = new Local();
+
+    /**
+     * 布隆过滤器相关配置
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 互斥锁重建缓存相关配置
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    @Data
+    public static class Local {
+        /**
+         * 是否在Redis前增加进程内一级缓存
+         */
+        private boolean enabled = false;
+        /**
+         * 最多缓存的key数量，超过后淘汰最近最少使用的
+         */
+        private int maximumSize = 10000;
+        /**
+         * 一级缓存的有效期，也是失效广播丢失时数据不一致的最长时间
+         */
+        private Duration ttl = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class EarlyRefresh {
+        /**
+         * 是否开启概率提前刷新（XFetch），只对queryWithPassThrough生效
+         */
+        private boolean enabled = false;
+        /**
+         * 大于1时更倾向于提前刷新，小于1时更接近过期才刷新
+         */
+        private double beta = 1.0;
+    }
+
+    @Data
+    public static class Rebuild {
+        /**
+         * 等待缓存重建的最长时间，超过后直接查询数据库
+         */
+        private Duration waitTimeout = Duration.ofSeconds(3);
+        /**
+         * 其他实例持有重建锁时，重试获取锁的间隔
+         */
+        private Duration retryInterval = Duration.ofMillis(50);
+        /**
+         * 重建时查询数据库的预计最长耗时，同一实例内等待重建结果的线程最多等待waitTimeout加上该时长
+         */
+        private Duration loadTimeout = Duration.ofSeconds(2);
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否用布隆过滤器拦截不存在的id，开启后启动时从数据库加载所有id
+         */
+        private boolean enabled = false;
+        /**
+         * 预计的元素数量
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 期望的误判率
+         */
+        private double fpp = 0.01;
+        /**
+         * 启动时每次从数据库加载的id数量
+         */
+        private int loadBatchSize = 1000;
+        /**
+         * 本地镜像从Redis全量同步位图的间隔，补上丢失的添加通知
+         */
+        private Duration syncInterval = Duration.ofMinutes(5);
+        /**
+         * 本地判断不存在时查询Redis，Redis也判断不存在的结果在本地缓存的时长，为0时不缓存。
+         * 其他实例新添加的元素在通知丢失时，最多在该时长内被误判为不存在
+         */
+        private Duration negativeCacheTtl = Duration.ofSeconds(1);
+    }
+}
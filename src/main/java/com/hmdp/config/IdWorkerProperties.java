@@ -0,0 +1,60 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 全局ID生成器配置，对应application.yaml中的hmdp.id
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdWorkerProperties {
+
+    /**
+     * 默认生成模式：redis 每次INCR；segment 号段模式，一次INCRBY预取一段序列号；
+     * snowflake 雪花算法，只在启动和心跳时访问Redis租借workerId
+     */
+    private String mode = "redis";
+
+    /**
+     * 按业务前缀单独指定生成模式，例如 order: snowflake，未配置的前缀使用mode
+     */
+    private Map<String, String> modes = new HashMap<>();
+
+    /**
+     * 号段模式下每次预取的序列号数量
+     */
+    private int segmentStep = 1000;
+
+    /**
+     * 当前号段用掉该比例后异步预取下一段
+     */
+    private double segmentPrefetchRatio = 0.8;
+
+    /**
+     * 雪花模式下workerId租约的有效期，心跳间隔为有效期的三分之一
+     */
+    private Duration workerLeaseTtl = Duration.ofSeconds(30);
+
+    /**
+     * 雪花模式下允许等待的最大时钟回拨，超过则拒绝生成ID
+     */
+    private Duration maxClockBackward = Duration.ofMillis(5);
+
+    public String modeOf(String keyPrefix) {
+        return modes.getOrDefault(keyPrefix, mode);
+    }
+
+    public boolean usesMode(String m) {
+        return m.equals(mode) || modes.containsValue(m);
+    }
+}
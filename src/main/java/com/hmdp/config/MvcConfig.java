@@ -1,6 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RedisRateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -15,6 +18,12 @@ public class MvcConfig implements WebMvcConfigurer {
     */
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisRateLimiter redisRateLimiter;
+    @Resource
+    private RateLimitProperties rateLimitProperties;
+    @Resource
+    private AdminProperties adminProperties;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -28,6 +37,14 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/blog/hot"
                 ).order(1);
+        //管理员拦截器，运维接口只允许配置的管理员调用
+        registry.addInterceptor(new AdminInterceptor(adminProperties))
+                .addPathPatterns(
+                        "/voucher/seckill/*/stock",
+                        "/voucher-order/dead-letter/**"
+                ).order(1);
+        //限流拦截器，只对@RateLimit标注的接口生效，放在登录拦截器之后以便按用户限流
+        registry.addInterceptor(new RateLimitInterceptor(redisRateLimiter, rateLimitProperties)).order(2);
         //token刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
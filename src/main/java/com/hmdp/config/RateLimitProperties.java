@@ -0,0 +1,72 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 接口限流配置，对应application.yaml中的hmdp.rate-limit
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    /**
+     * 是否开启限流
+     */
+    private boolean enabled = true;
+
+    /**
+     * 获取客户端IP的请求头，例如经过nginx时的 X-Real-IP，为空时使用连接的远端地址
+     */
+    private String ipHeader;
+
+    /**
+     * 限流规则，key为@RateLimit中的规则名称
+     */
+    private Map<String, Rule> rules = new HashMap<>();
+
+    @Data
+    public static class Rule {
+        /**
+         * 每个用户
+         */
+        private Limit user = new Limit();
+        /**
+         * 每个IP
+         */
+        private Limit ip = new Limit();
+        /**
+         * 每个资源（如优惠券）全局
+         */
+        private Limit global = new Limit();
+    }
+
+    @Data
+    public static class Limit {
+        /**
+         * 每秒补充的令牌数，小于等于0表示不限流
+         */
+        private double rate;
+        /**
+         * 桶容量，即允许的突发请求数
+         */
+        private int burst = 1;
+        /**
+         * 拆分成的Redis桶数量，每个桶的速率和容量为总数的1/shards，每次请求随机取一个桶，
+         * 避免热点资源的全局桶集中在一个Redis key上。请求量较小时拆分会让限流偏严格，只用于全局桶
+         */
+        private int shards = 1;
+
+        public boolean isEnabled() {
+            return rate > 0;
+        }
+    }
+}
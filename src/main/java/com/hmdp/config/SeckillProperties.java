@@ -0,0 +1,276 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 秒杀相关配置，对应application.yaml中的hmdp.seckill
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 秒杀key的分区数，同一分区的库存、一人一单集合、时间窗口和订单stream使用相同的hash tag，
+     * 在Redis Cluster中落在同一个slot。为1时所有key都在{0}这一个slot上，只适用于单机或主从部署，
+     * Redis Cluster部署时必须大于1（启动时校验），建议不小于集群主节点数。秒杀进行中不能修改
+     */
+    private int partitions = 1;
+
+    /**
+     * 异步下单（消费stream.orders:{p}）相关配置
+     */
+    private Order order = new Order();
+
+    /**
+     * 秒杀库存相关配置
+     */
+    private Stock stock = new Stock();
+
+    /**
+     * 秒杀预热相关配置
+     */
+    private Preheat preheat = new Preheat();
+
+    /**
+     * 订单stream裁剪和归档相关配置
+     */
+    private Trim trim = new Trim();
+
+    /**
+     * 秒杀等候室相关配置
+     */
+    private Room room = new Room();
+
+    /**
+     * 未支付订单超时取消相关配置
+     */
+    private PayTimeout payTimeout = new PayTimeout();
+
+    /**
+     * 异步秒杀接口相关配置
+     */
+    private Async async = new Async();
+
+    @Data
+    public static class Async {
+        /**
+         * 执行异步秒杀回调的线程数，回调中可能有阻塞的Redis调用（查询分段数、租借配额、借库存），
+         * 不能在Lettuce的IO线程或公共ForkJoinPool上执行
+         */
+        private int callbackThreads = 16;
+        /**
+         * 回调队列容量，队列满时直接返回系统繁忙
+         */
+        private int callbackQueueCapacity = 10000;
+    }
+
+    @Data
+    public static class Order {
+        /**
+         * 消费者组名称
+         */
+        private String group = "g1";
+        /**
+         * 分区分配策略：exclusive 每个分区同一时刻只由一个实例的一个消费者独占消费，分区内保持顺序，
+         * 各实例按存活实例数平分分区，整个集群的消费者总数等于分区数，consumers不生效，分区内遗留的消息在接管分区时处理；
+         * shared 每个实例启动consumers个消费者轮流分配到各个分区，不保证顺序，由定时任务接管宕机消费者遗留的消息
+         */
+        private String assignment = "shared";
+        /**
+         * 订单消息的分区依据：voucher 与库存key同一分区；user 按userId哈希选择分区，
+         * 热门优惠券的订单也能分散到多个分区，但stream与库存key不在同一slot，只能用于非集群部署
+         */
+        private String partitionBy = "voucher";
+        /**
+         * exclusive模式下分区租约的有效期，续约间隔为有效期的三分之一
+         */
+        private Duration partitionLeaseTtl = Duration.ofSeconds(30);
+        /**
+         * shared模式下每个实例的消费者（线程）数量
+         */
+        private int consumers = 1;
+        /**
+         * 消费者名称前缀，为空时使用主机名，最终名称为 前缀-序号
+         */
+        private String consumerPrefix;
+        /**
+         * 扫描pending-list的间隔
+         */
+        private Duration reclaimInterval = Duration.ofSeconds(30);
+        /**
+         * 消息空闲超过该时长才会被接管，需明显大于一次正常处理的耗时
+         */
+        private Duration reclaimMinIdle = Duration.ofSeconds(60);
+        /**
+         * 每次扫描pending-list的最大条数
+         */
+        private int reclaimBatchSize = 100;
+        /**
+         * 订单状态（queued/persisted/failed）在Redis中的保存时长
+         */
+        private Duration statusTtl = Duration.ofMinutes(30);
+        /**
+         * SSE订阅订单状态的超时时间
+         */
+        private Duration statusSseTimeout = Duration.ofSeconds(30);
+        /**
+         * 消息的最大投递次数，达到后转入死信队列
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 处理失败后重试的初始退避时间，每次失败翻倍
+         */
+        private Duration retryBackoff = Duration.ofMillis(100);
+        /**
+         * 重试退避时间的上限
+         */
+        private Duration maxRetryBackoff = Duration.ofSeconds(10);
+        /**
+         * 是否使用幂等插入持久化订单：依赖tb_voucher_order的(user_id, voucher_id)唯一索引，
+         * 用INSERT IGNORE代替分布式锁加查询
+         */
+        private boolean idempotentInsert = false;
+        /**
+         * 是否开启批量消费，关闭后退化为逐条消费
+         */
+        private boolean batchEnabled = false;
+        /**
+         * 每批最多读取的消息条数
+         */
+        private int batchSize = 50;
+        /**
+         * 凑批的最长等待时间，读到第一条消息后开始计时
+         */
+        private Duration maxLinger = Duration.ofMillis(200);
+
+        public boolean isExclusive() {
+            return "exclusive".equals(assignment);
+        }
+    }
+
+    @Data
+    public static class Stock {
+        /**
+         * 新建秒杀券时库存拆分的分段数，1表示不分段
+         */
+        private int segments = 1;
+        /**
+         * 是否开启本地库存配额，只对未分段的秒杀券生效
+         */
+        private boolean quotaEnabled = false;
+        /**
+         * 每次向Redis租借的库存数量
+         */
+        private int quotaChunk = 50;
+        /**
+         * 租约有效期，超过该时长未用完的配额归还Redis，让其他实例可以继续售卖
+         */
+        private Duration quotaLeaseTtl = Duration.ofSeconds(10);
+        /**
+         * 是否延迟聚合扣减数据库库存：订单落库时不再更新tb_seckill_voucher，
+         * 按优惠券累计扣减数量，定时或累计达到writeBehindBatchSize时一次执行 stock = stock - k
+         */
+        private boolean writeBehindEnabled = false;
+        /**
+         * 聚合扣减的刷新间隔
+         */
+        private Duration writeBehindInterval = Duration.ofSeconds(1);
+        /**
+         * 单个优惠券累计扣减达到该数量时立即刷新
+         */
+        private int writeBehindBatchSize = 200;
+    }
+
+    @Data
+    public static class Preheat {
+        /**
+         * 是否开启预热任务
+         */
+        private boolean enabled = true;
+        /**
+         * 预热在该时长内开始（以及正在进行中）的秒杀
+         */
+        private Duration lookahead = Duration.ofMinutes(10);
+        /**
+         * 扫描间隔
+         */
+        private Duration interval = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class PayTimeout {
+        /**
+         * 是否自动取消超时未支付的订单。项目中还没有支付流程，订单不会变为已支付，
+         * 接入支付（把订单状态从1改为2）之前不能开启，否则所有订单都会被取消
+         */
+        private boolean enabled = false;
+        /**
+         * 订单创建后超过该时长仍未支付则取消，并归还库存
+         */
+        private Duration timeout = Duration.ofMinutes(15);
+        /**
+         * 检查到期订单的间隔
+         */
+        private Duration pollInterval = Duration.ofSeconds(1);
+        /**
+         * 每次从一个分区取出的最大订单数
+         */
+        private int batchSize = 100;
+        /**
+         * 取出后未处理完成（异常或宕机）的订单重新到期的延迟
+         */
+        private Duration retryDelay = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Room {
+        /**
+         * 是否开启等候室，开启后必须先取号，放行后才能下单
+         */
+        private boolean enabled = false;
+        /**
+         * 每个优惠券每秒放行的人数
+         */
+        private int admitRate = 500;
+        /**
+         * 放行间隔，每次放行 admitRate * admitInterval 人
+         */
+        private Duration admitInterval = Duration.ofMillis(200);
+        /**
+         * 等候室数据的有效期
+         */
+        private Duration ttl = Duration.ofDays(1);
+    }
+
+    @Data
+    public static class Trim {
+        /**
+         * 是否定时裁剪订单stream中已经确认的消息
+         */
+        private boolean enabled = true;
+        /**
+         * 裁剪间隔
+         */
+        private Duration interval = Duration.ofMinutes(1);
+        /**
+         * 裁剪前是否把已确认的消息追加写入本地gzip文件
+         */
+        private boolean archiveEnabled = false;
+        /**
+         * 归档目录，每个分区每天一个文件
+         */
+        private String archiveDir = "archive/orders";
+        /**
+         * 归档时每次XRANGE读取的条数
+         */
+        private int archiveBatchSize = 1000;
+    }
+}
@@ -4,12 +4,15 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.RateLimit;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -26,8 +29,88 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService VoucherOrderService;
 
+    @RateLimit(value = "seckill", resource = "id")
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return VoucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 非阻塞秒杀：Redis调用期间不占用Tomcat工作线程，结果就绪后再写回响应
+     */
+    @RateLimit(value = "seckill", resource = "id")
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        return VoucherOrderService.seckillVoucherAsync(voucherId);
+    }
+
+    /**
+     * 进入秒杀等候室取号，放行后才能下单
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeSeckillTicket(@PathVariable("id") Long voucherId) {
+        return VoucherOrderService.takeSeckillTicket(voucherId);
+    }
+
+    /**
+     * 查询排队位置，ahead为0时可以下单
+     */
+    @GetMapping("seckill/{id}/position")
+    public Result querySeckillPosition(@PathVariable("id") Long voucherId) {
+        return VoucherOrderService.querySeckillPosition(voucherId);
+    }
+
+    /**
+     * 查询秒杀订单状态：queued 排队中，persisted 已创建，failed 创建失败。
+     * 订单不存在、状态已过期或不是当前用户的订单时返回404
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId, HttpServletResponse response) {
+        Result result = VoucherOrderService.queryOrderStatus(orderId);
+        if (!result.getSuccess()) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+        }
+        return result;
+    }
+
+    /**
+     * 以SSE方式订阅订单状态，订单创建成功或失败时推送最终状态。
+     * EventSource不能设置请求头，登录凭证可以通过查询参数传递：{id}/status/stream?token=xxx
+     * 订单不存在、状态已过期或不是当前用户的订单时返回404
+     */
+    @GetMapping(value = "{id}/status/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeOrderStatus(@PathVariable("id") Long orderId, HttpServletResponse response) {
+        SseEmitter emitter = VoucherOrderService.subscribeOrderStatus(orderId);
+        if (emitter == null) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+        }
+        return emitter;
+    }
+
+    /**
+     * 查看分区死信队列中的订单消息
+     * @param partition 分区
+     * @param count 最多返回的条数
+     */
+    @GetMapping("dead-letter/{partition}")
+    public Result queryDeadLetters(@PathVariable("partition") Integer partition,
+                                   @RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return VoucherOrderService.queryDeadLetters(partition, count);
+    }
+
+    /**
+     * 把死信重新发送到订单stream
+     */
+    @PostMapping("dead-letter/{partition}/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("partition") Integer partition, @PathVariable("id") String id) {
+        return VoucherOrderService.replayDeadLetter(partition, id);
+    }
+
+    /**
+     * 丢弃死信
+     */
+    @DeleteMapping("dead-letter/{partition}/{id}")
+    public Result deleteDeadLetter(@PathVariable("partition") Integer partition, @PathVariable("id") String id) {
+        return VoucherOrderService.deleteDeadLetter(partition, id);
+    }
 }
@@ -0,0 +1,26 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀等候室中的排队位置
+ */
+@Data
+public class SeckillPosition {
+    /**
+     * 排队号
+     */
+    private Long ticket;
+    /**
+     * 已放行到的号
+     */
+    private Long admitted;
+    /**
+     * 前面还有多少人，0表示已经放行，可以下单
+     */
+    private Long ahead;
+    /**
+     * 是否已经售罄，售罄后不需要继续排队
+     */
+    private Boolean soldOut;
+}
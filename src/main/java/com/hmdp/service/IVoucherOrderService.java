@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -15,4 +18,20 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
+
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
+    Result takeSeckillTicket(Long voucherId);
+
+    Result querySeckillPosition(Long voucherId);
+
+    Result queryOrderStatus(Long orderId);
+
+    SseEmitter subscribeOrderStatus(Long orderId);
+
+    Result queryDeadLetters(Integer partition, Integer count);
+
+    Result replayDeadLetter(Integer partition, String deadLetterId);
+
+    Result deleteDeadLetter(Integer partition, String deadLetterId);
 }
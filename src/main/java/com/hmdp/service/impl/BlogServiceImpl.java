@@ -15,6 +15,7 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -26,9 +27,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -49,6 +53,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -111,6 +117,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.1数据库点赞数+1
             boolean isSuccess = update().setSql("liked = liked+1").eq("id", id).update();
             if (isSuccess) {
+                //点赞数变化，删除博客缓存
+                cacheClient.delete(CACHE_BLOG_KEY + id);
                 //3.2保存用户到redis的zset集合
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
             }
@@ -119,6 +127,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4.1数据库点赞数-1
             boolean isSuccess = update().setSql("liked = liked-1").eq("id", id).update();
             if (isSuccess) {
+                cacheClient.delete(CACHE_BLOG_KEY + id);
                 //4.2把用户从redis的zset集合删除
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
             }
@@ -201,11 +210,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             os = 1;
             }
         }
-        //5.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")")
-                .list();
+        //5.根据id批量查询blog，先查缓存，未命中的再查数据库，按收件箱顺序返回
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class, this::listByIds, Blog::getId,
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
         for (Blog blog : blogs) {
             queryBlogUser(blog);
             //判断是否已经给当前博客点赞
@@ -11,10 +11,14 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
@@ -23,6 +27,7 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
@@ -42,6 +47,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author pht
  * @since 2022-06
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
     /*
@@ -53,10 +59,44 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    /**
+     * 只有开启hmdp.cache.bloom.enabled时才有该bean
+     */
+    @Autowired(required = false)
+    private RedisBloomFilter shopBloomFilter;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        if (shopBloomFilter == null) {
+            return;
+        }
+        // 按id分页加载所有商铺id，写入布隆过滤器
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<Object> ids = getBaseMapper().selectObjs(query().select("id").gt("id", lastId)
+                    .orderByAsc("id").last("limit " + config.getLoadBatchSize()).getWrapper());
+            if (ids.isEmpty()) {
+                break;
+            }
+            shopBloomFilter.addAll(ids);
+            total += ids.size();
+            lastId = Long.parseLong(ids.get(ids.size() - 1).toString());
+        }
+        // 合并Redis中其他实例添加的元素，之后本地判断不存在时不再查询Redis
+        shopBloomFilter.sync();
+        shopBloomFilter.scheduleSync(config.getSyncInterval());
+        log.info("商铺布隆过滤器初始化完成，shops={}", total);
+    }
+
     @Override
     public Result queryById(Long id) {
-        //缓存穿透
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        //缓存穿透，开启布隆过滤器时先拦截一定不存在的id
+        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES,shopBloomFilter);
         //互斥锁解决缓存击穿
         //Shop shop = queryWithMutex(id);
         //逻辑过期解决缓存击穿
@@ -212,6 +252,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器，并删除之前可能缓存的空值
+        if (shopBloomFilter != null) {
+            shopBloomFilter.add(shop.getId());
+        }
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result updateShop(Shop shop) {
         Long id = shop.getId();
@@ -220,8 +272,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.操作数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //2.删除缓存，同时通知所有实例淘汰一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY+id);
         return Result.ok();
 
     }
@@ -268,12 +320,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr,distance);
         });
-        //5.根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query()
-                .in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")")
-                .list();
+        //5.根据id批量查询shop，先查缓存，未命中的再查数据库，按距离顺序返回
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId,
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
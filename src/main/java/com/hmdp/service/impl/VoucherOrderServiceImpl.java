@@ -1,31 +1,69 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillPosition;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisDelayQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockQuota;
+import com.hmdp.utils.SeckillStockWriteBehind;
+import com.hmdp.utils.SeckillVoucherSchedule;
+import com.hmdp.utils.SeckillWaitingRoom;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -48,33 +86,330 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedissonClient redissonClient;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillStockQuota seckillStockQuota;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillVoucherSchedule seckillVoucherSchedule;
+    @Resource
+    private SeckillKeys seckillKeys;
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private RedisDelayQueue redisDelayQueue;
+    @Resource
+    private SeckillStockWriteBehind seckillStockWriteBehind;
+
+    /**
+     * 分段脚本的返回码：用户所属分段库存不足，已经占住去重名额，需要向相邻分段借库存
+     */
+    private static final int BORROW = 3;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_BORROW_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_QUOTA_SCRIPT;
+    private static final DefaultRedisScript<Long> PARTITION_RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> PARTITION_RELEASE_SCRIPT;
+
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill-segment.lua"));
+        SECKILL_SEGMENT_SCRIPT.setResultType(Long.class);
+        STOCK_BORROW_SCRIPT = new DefaultRedisScript<>();
+        STOCK_BORROW_SCRIPT.setLocation(new ClassPathResource("stock-borrow.lua"));
+        STOCK_BORROW_SCRIPT.setResultType(Long.class);
+        SECKILL_QUOTA_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_QUOTA_SCRIPT.setLocation(new ClassPathResource("seckill-quota.lua"));
+        SECKILL_QUOTA_SCRIPT.setResultType(Long.class);
+        PARTITION_RENEW_SCRIPT = new DefaultRedisScript<>();
+        PARTITION_RENEW_SCRIPT.setLocation(new ClassPathResource("worker-renew.lua"));
+        PARTITION_RENEW_SCRIPT.setResultType(Long.class);
+        PARTITION_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        PARTITION_RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        PARTITION_RELEASE_SCRIPT.setResultType(Long.class);
     }
 
+    /**
+     * 优惠券的库存分段数，缓存在本地避免每次请求都查询。
+     * 重新预热或重置库存可能修改分段数，缓存过期或下单返回未预热时重新从Redis读取
+     */
+    private static final long SEGMENTS_CACHE_TTL = TimeUnit.SECONDS.toMillis(10);
+    private final TimedCache<Long, Integer> segmentsCache = CacheUtil.newTimedCache(SEGMENTS_CACHE_TTL);
+
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+    private ScheduledExecutorService pendingReclaimExecutor;
+    private ScheduledExecutorService partitionAssignExecutor;
+    private ScheduledExecutorService payTimeoutExecutor;
+    /**
+     * 异步秒杀的回调线程池，有界队列，满了拒绝
+     */
+    private ExecutorService seckillCallbackExecutor;
+
+    /**
+     * exclusive模式下本实例的标识，作为分区租约的值
+     */
+    private final String instanceToken = UUID.randomUUID().toString(true);
+    private String consumerPrefix;
+    /**
+     * exclusive模式下本实例当前持有的分区及其消费者
+     */
+    private final Map<Integer, VoucherOrderHandler> ownedPartitions = new ConcurrentHashMap<>();
 
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        SeckillProperties.Async async = seckillProperties.getAsync();
+        seckillCallbackExecutor = new ThreadPoolExecutor(async.getCallbackThreads(), async.getCallbackThreads(),
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(async.getCallbackQueueCapacity()));
+        // 定时取消超时未支付的订单，与订单消费的分区分配方式无关
+        SeckillProperties.PayTimeout payTimeout = seckillProperties.getPayTimeout();
+        if (payTimeout.isEnabled()) {
+            payTimeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+            long pollInterval = payTimeout.getPollInterval().toMillis();
+            payTimeoutExecutor.scheduleWithFixedDelay(this::cancelExpiredOrders, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        }
+        SeckillProperties.Order config = seckillProperties.getOrder();
+        // 1.每个分区一个订单stream，启动时创建消费者组（已存在时忽略）
+        int partitions = seckillKeys.partitions();
+        for (int p = 0; p < partitions; p++) {
+            createGroupIfAbsent(seckillKeys.streamKey(p), config.getGroup());
+        }
+        consumerPrefix = StrUtil.isNotBlank(config.getConsumerPrefix()) ? config.getConsumerPrefix() : localHostName();
+        if (config.isExclusive()) {
+            // 2.独占模式：定时抢占和续约分区租约，每个持有的分区启动一个消费者
+            if (partitions < config.getConsumers()) {
+                log.warn("exclusive模式下整个集群只有{}个订单消费者，consumers={}不生效，需要更高吞吐时调大partitions或使用shared模式",
+                        partitions, config.getConsumers());
+            }
+            seckillOrderExecutor = Executors.newCachedThreadPool();
+            partitionAssignExecutor = Executors.newSingleThreadScheduledExecutor();
+            long interval = config.getPartitionLeaseTtl().toMillis() / 3;
+            partitionAssignExecutor.scheduleWithFixedDelay(this::assignPartitions, 0, interval, TimeUnit.MILLISECONDS);
+            return;
+        }
+        // 2.共享模式：每个实例启动多个消费者，消费者名称为 主机名-序号，保证在消费者组内唯一；
+        // 消费者按序号轮流分配到各个分区，每个分区至少有一个消费者
+        int consumers = Math.max(config.getConsumers(), partitions);
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(i % partitions, false, consumerPrefix + "-" + i));
+        }
+        // 3.定时接管已宕机消费者遗留在pending-list中的消息
+        pendingReclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+        long interval = config.getReclaimInterval().toMillis();
+        pendingReclaimExecutor.scheduleWithFixedDelay(
+                new PendingOrderReclaimer(consumerPrefix + "-reclaimer"), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 分区分配：每个实例在SECKILL_STREAM_CONSUMERS_KEY中登记心跳，按存活实例数平分分区。
+     * 分区租约 SECKILL_STREAM_OWNER_KEY+p 保证同一时刻只有一个消费者消费该分区
+     */
+    private void assignPartitions() {
+        try {
+            Duration ttl = seckillProperties.getOrder().getPartitionLeaseTtl();
+            long now = System.currentTimeMillis();
+            // 1.登记心跳，统计存活的实例数，计算每个实例应持有的分区数
+            stringRedisTemplate.opsForZSet().add(SECKILL_STREAM_CONSUMERS_KEY, instanceToken, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_STREAM_CONSUMERS_KEY, 0, now - ttl.toMillis());
+            Long live = stringRedisTemplate.opsForZSet().zCard(SECKILL_STREAM_CONSUMERS_KEY);
+            int instances = live == null || live < 1 ? 1 : live.intValue();
+            int partitions = seckillKeys.partitions();
+            int share = (partitions + instances - 1) / instances;
+            // 2.续约已持有的分区，续约失败说明租约已经过期，停止消费
+            int running = 0;
+            for (Map.Entry<Integer, VoucherOrderHandler> entry : ownedPartitions.entrySet()) {
+                VoucherOrderHandler handler = entry.getValue();
+                if (!handler.running) {
+                    continue;
+                }
+                Long renewed = stringRedisTemplate.execute(PARTITION_RENEW_SCRIPT,
+                        Collections.singletonList(SECKILL_STREAM_OWNER_KEY + entry.getKey()),
+                        instanceToken, String.valueOf(ttl.getSeconds()));
+                if (renewed == null || renewed != 1L) {
+                    log.error("分区租约丢失，partition={}", entry.getKey());
+                    handler.running = false;
+                    continue;
+                }
+                // 3.持有的分区超过平均数时释放多余的分区，让新加入的实例接管
+                if (running >= share) {
+                    log.info("释放分区，partition={}", entry.getKey());
+                    handler.running = false;
+                    continue;
+                }
+                running++;
+            }
+            // 4.持有的分区不足平均数时，抢占没有owner的分区，从各实例不同的位置开始避免互相竞争
+            int offset = Math.floorMod(instanceToken.hashCode(), partitions);
+            for (int i = 0; i < partitions && running < share; i++) {
+                int p = (offset + i) % partitions;
+                if (ownedPartitions.containsKey(p)) {
+                    continue;
+                }
+                Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                        SECKILL_STREAM_OWNER_KEY + p, instanceToken, ttl.getSeconds(), TimeUnit.SECONDS);
+                if (!Boolean.TRUE.equals(success)) {
+                    continue;
+                }
+                log.info("获得分区，partition={}", p);
+                VoucherOrderHandler handler = new VoucherOrderHandler(p, true, consumerPrefix + "-p" + p);
+                ownedPartitions.put(p, handler);
+                seckillOrderExecutor.submit(handler);
+                running++;
+            }
+        } catch (Exception e) {
+            log.error("分配订单分区异常", e);
+        }
+    }
+
+    /**
+     * 消费者退出后释放分区租约，只删除自己的租约
+     */
+    private void releasePartition(int partition, VoucherOrderHandler handler) {
+        ownedPartitions.remove(partition, handler);
+        try {
+            stringRedisTemplate.execute(PARTITION_RELEASE_SCRIPT,
+                    Collections.singletonList(SECKILL_STREAM_OWNER_KEY + partition), instanceToken);
+        } catch (Exception e) {
+            log.error("释放分区租约异常，partition={}", partition, e);
+        }
+    }
+
+    /**
+     * XGROUP CREATE streamKey group 0 MKSTREAM
+     */
+    private void createGroupIfAbsent(String streamKey, String group) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(streamKey.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP 消费者组已经存在
+            log.debug("创建消费者组失败，stream={}, group={}, {}", streamKey, group, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (partitionAssignExecutor != null) {
+            partitionAssignExecutor.shutdownNow();
+            stringRedisTemplate.opsForZSet().remove(SECKILL_STREAM_CONSUMERS_KEY, instanceToken);
+        }
+        if (pendingReclaimExecutor != null) {
+            pendingReclaimExecutor.shutdownNow();
+        }
+        if (payTimeoutExecutor != null) {
+            payTimeoutExecutor.shutdownNow();
+        }
+        if (seckillCallbackExecutor != null) {
+            seckillCallbackExecutor.shutdownNow();
+        }
+        // 消费者线程退出时会释放各自的分区租约
+        seckillOrderExecutor.shutdownNow();
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString(true);
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
 
-        private static final String queueName = "stream.orders";
+        private final int partition;
+        /**
+         * 是否独占该分区
+         */
+        private final boolean exclusive;
+        private final String queueName;
+        private final Consumer consumer;
+        private volatile boolean running = true;
+
+        VoucherOrderHandler(int partition, boolean exclusive, String consumerName) {
+            this.partition = partition;
+            this.exclusive = exclusive;
+            this.queueName = seckillKeys.streamKey(partition);
+            this.consumer = Consumer.from(seckillProperties.getOrder().getGroup(), consumerName);
+        }
+
         @Override
         public void run() {
-            while (true) {
+            if (!exclusive) {
+                consume();
+                return;
+            }
+            try {
+                // 接管分区前一个owner遗留的消息并先处理完，保证分区内的顺序
+                claimPendingList();
+                handlePendingList();
+                consume();
+            } catch (Exception e) {
+                log.error("消费订单分区异常，partition={}", partition, e);
+            } finally {
+                running = false;
+                releasePartition(partition, this);
+            }
+        }
+
+        /**
+         * 把分区pending-list中其他消费者的消息转移给自己 XCLAIM stream.orders:{p} g1 consumer 0 id... JUSTID
+         */
+        private void claimPendingList() {
+            String group = consumer.getGroup();
+            int count = seckillProperties.getOrder().getReclaimBatchSize();
+            byte[] key = queueName.getBytes(StandardCharsets.UTF_8);
+            // 1.查询各消费者的pending消息数 XPENDING stream.orders:{p} g1
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, group);
+            for (String owner : summary.getPendingMessagesPerConsumer().keySet()) {
+                if (owner.equals(consumer.getName())) {
+                    continue;
+                }
+                // 2.分页转移该消费者的pending消息 XPENDING stream.orders:{p} g1 - + count owner
+                while (running) {
+                    PendingMessages pending = stringRedisTemplate.opsForStream()
+                            .pending(queueName, Consumer.from(group, owner), Range.unbounded(), count);
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    RecordId[] ids = new RecordId[pending.size()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = pending.get(i).getId();
+                    }
+                    List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                            connection.streamCommands().xClaimJustId(key, group, consumer.getName(),
+                                    RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(ids)));
+                    if (claimed == null || claimed.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void consume() {
+            while (running && !Thread.currentThread().isInterrupted()) {
                 try {
+                    if (seckillProperties.getOrder().isBatchEnabled()) {
+                        handleBatch();
+                        continue;
+                    }
                     // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            consumer,
                             StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
@@ -90,19 +425,72 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     // 3.创建订单
                     createVoucherOrder(voucherOrder);
                     // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, consumer.getGroup(), record.getId());
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
                     handlePendingList();
                 }
             }
         }
+
+        private void handleBatch() {
+            // 1.批量获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS s1 >
+            List<MapRecord<String, Object, Object>> records = readBatch();
+            // 2.判断订单信息是否为空
+            if (records.isEmpty()) {
+                return;
+            }
+            // 解析数据
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            RecordId[] recordIds = new RecordId[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, Object, Object> record = records.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
+            }
+            // 3.在一个事务中批量创建订单
+            createVoucherOrderBatch(voucherOrders);
+            // 4.整批确认消息 XACK
+            stringRedisTemplate.opsForStream().acknowledge(queueName, consumer.getGroup(), recordIds);
+        }
+
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            int batchSize = Math.max(config.getBatchSize(), 1);
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            long deadline = 0;
+            while (batch.size() < batchSize) {
+                // 第一次读取阻塞等待消息，之后只在凑批的剩余时间内等待
+                Duration block = Duration.ofSeconds(2);
+                if (!batch.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    block = Duration.ofMillis(remaining);
+                }
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(block),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.currentTimeMillis() + config.getMaxLinger().toMillis();
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
         private void handlePendingList() {
-            while (true) {
+            while (running && !Thread.currentThread().isInterrupted()) {
                 try {
                     // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            consumer,
                             StreamReadOptions.empty().count(1),
                             StreamOffset.create(queueName, ReadOffset.from("0"))
                     );
@@ -113,19 +501,223 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     }
                     // 解析数据
                     MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                    try {
+                        Map<Object, Object> value = record.getValue();
+                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+                        // 3.创建订单
+                        createVoucherOrder(voucherOrder);
+                        // 4.确认消息 XACK
+                        stringRedisTemplate.opsForStream().acknowledge(queueName, consumer.getGroup(), record.getId());
+                    } catch (Exception e) {
+                        log.error("处理pending-list订单异常，id={}", record.getId(), e);
+                        // 5.超过最大投递次数的消息转入死信队列，否则退避后重试
+                        retryOrDeadLetter(record, e);
+                    }
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                }
+            }
+        }
+
+        /**
+         * 从pending-list读取消息也会增加投递次数，按 XPENDING 中的投递次数决定重试还是转入死信队列，
+         * 重试前指数退避 retryBackoff * 2^(次数-1)，避免一条坏消息让消费者空转
+         */
+        private void retryOrDeadLetter(MapRecord<String, Object, Object> record, Exception cause) {
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            // 1.查询投递次数 XPENDING stream.orders:{p} g1 id id 1 consumer
+            String id = record.getId().getValue();
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(queueName, consumer, Range.closed(id, id), 1L);
+            long deliveries = pending.isEmpty() ? 1 : pending.get(0).getTotalDeliveryCount();
+            if (deliveries >= config.getMaxDeliveries()) {
+                deadLetter(partition, record, deliveries, cause);
+                return;
+            }
+            // 2.指数退避
+            long backoff = Math.min(config.getRetryBackoff().toMillis() << Math.min(deliveries - 1, 20),
+                    config.getMaxRetryBackoff().toMillis());
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 通过XPENDING找出空闲超过阈值的消息（通常属于已宕机的消费者），用XCLAIM接管后逐条处理并确认
+     */
+    private class PendingOrderReclaimer implements Runnable {
+
+        private final String consumerName;
+
+        PendingOrderReclaimer(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            for (int p = 0; p < seckillKeys.partitions(); p++) {
+                String queueName = seckillKeys.streamKey(p);
+                try {
+                    reclaim(p, queueName);
+                } catch (Exception e) {
+                    log.error("接管pending-list异常，stream={}", queueName, e);
+                }
+            }
+        }
+
+        private void reclaim(int partition, String queueName) {
+            SeckillProperties.Order config = seckillProperties.getOrder();
+            String group = config.getGroup();
+            Duration minIdle = config.getReclaimMinIdle();
+            // 1.查询pending-list XPENDING stream.orders:{p} g1 - + count
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(queueName, group, Range.unbounded(), config.getReclaimBatchSize());
+            List<RecordId> idleIds = new ArrayList<>();
+            Map<RecordId, Long> deliveries = new HashMap<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                    idleIds.add(message.getId());
+                    // XCLAIM会再增加一次投递次数
+                    deliveries.put(message.getId(), message.getTotalDeliveryCount() + 1);
+                }
+            }
+            if (idleIds.isEmpty()) {
+                return;
+            }
+            // 2.接管消息 XCLAIM stream.orders:{p} g1 reclaimer minIdle id...，minIdle保证不会和其他实例重复接管
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(
+                            queueName.getBytes(StandardCharsets.UTF_8), group, consumerName,
+                            minIdle, idleIds.toArray(new RecordId[0])));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            log.info("接管pending-list中的订单消息{}条，stream={}", claimed.size(), queueName);
+            for (ByteRecord byteRecord : claimed) {
+                MapRecord<String, String, String> record = byteRecord.deserialize(StringRedisSerializer.UTF_8);
+                try {
                     // 3.创建订单
+                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
                     createVoucherOrder(voucherOrder);
                     // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, group, record.getId());
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    log.error("处理接管的订单异常", e);
+                    long count = deliveries.getOrDefault(record.getId(), 1L);
+                    if (count >= config.getMaxDeliveries()) {
+                        // 超过最大投递次数，转入死信队列
+                        deadLetter(partition, record, count, e);
+                    }
+                    // 否则留在当前消费者的pending-list中，空闲超时后会被再次接管
                 }
             }
         }
     }
 
+    /**
+     * 把消息转入死信队列 stream.orders.dlq:{p} 并确认原消息，死信中保留原始字段、原消息id、投递次数和异常信息
+     */
+    private void deadLetter(int partition, MapRecord<String, ?, ?> record, long deliveries, Exception cause) {
+        Map<String, String> value = new HashMap<>(record.getValue().size() + 3);
+        record.getValue().forEach((k, v) -> value.put(k.toString(), v.toString()));
+        value.put("streamId", record.getId().getValue());
+        value.put("deliveries", String.valueOf(deliveries));
+        value.put("error", StrUtil.maxLength(cause.toString(), 500));
+        // 1.XADD stream.orders.dlq:{p} * ...
+        stringRedisTemplate.opsForStream().add(seckillKeys.deadLetterKey(partition), value);
+        // 2.确认原消息，让后续消息可以继续处理
+        stringRedisTemplate.opsForStream().acknowledge(
+                seckillKeys.streamKey(partition), seckillProperties.getOrder().getGroup(), record.getId());
+        log.error("订单消息转入死信队列，partition={}, id={}, deliveries={}", partition, record.getId(), deliveries);
+        Object orderId = record.getValue().get("id");
+        if (orderId != null) {
+            seckillOrderStatus.markFailed(Long.valueOf(orderId.toString()));
+        }
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // 只查询Redis中的订单状态，不访问数据库，不是自己的订单按不存在处理
+        String status = seckillOrderStatus.get(orderId, UserHolder.getUser().getId());
+        if (status == null) {
+            return Result.fail("订单不存在或状态已过期");
+        }
+        return Result.ok(status);
+    }
+
+    @Override
+    public SseEmitter subscribeOrderStatus(Long orderId) {
+        return seckillOrderStatus.subscribe(orderId, UserHolder.getUser().getId());
+    }
+
+    @Override
+    public Result queryDeadLetters(Integer partition, Integer count) {
+        if (partition < 0 || partition >= seckillKeys.partitions()) {
+            return Result.fail("分区不存在");
+        }
+        // XRANGE stream.orders.dlq:{p} - + COUNT count
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                seckillKeys.deadLetterKey(partition), Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<Object, Object>> deadLetters = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> deadLetter = new LinkedHashMap<>(record.getValue());
+            deadLetter.put("deadLetterId", record.getId().getValue());
+            deadLetters.add(deadLetter);
+        }
+        return Result.ok(deadLetters, (long) deadLetters.size());
+    }
+
+    @Override
+    public Result replayDeadLetter(Integer partition, String deadLetterId) {
+        if (partition < 0 || partition >= seckillKeys.partitions()) {
+            return Result.fail("分区不存在");
+        }
+        if (StrUtil.isBlank(deadLetterId)) {
+            return Result.fail("死信id不能为空");
+        }
+        String deadLetterKey = seckillKeys.deadLetterKey(partition);
+        // 1.查询死信 XRANGE stream.orders.dlq:{p} id id
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(deadLetterKey, Range.closed(deadLetterId, deadLetterId));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信不存在");
+        }
+        Map<Object, Object> value = records.get(0).getValue();
+        // 2.校验原始字段，缺字段的死信无法重放，保留在死信队列中人工处理
+        Object userId = value.get("userId");
+        Object voucherId = value.get("voucherId");
+        Object orderId = value.get("id");
+        if (userId == null || voucherId == null || orderId == null
+                || !NumberUtil.isLong(userId.toString()) || !NumberUtil.isLong(orderId.toString())) {
+            return Result.fail("死信缺少订单信息，无法重放");
+        }
+        // 3.按原始字段重新发送到订单stream，订单创建本身是幂等的，重复投递会被忽略
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", orderId.toString());
+        RecordId recordId = stringRedisTemplate.opsForStream().add(seckillKeys.streamKey(partition), order);
+        if (recordId == null) {
+            return Result.fail("重放死信失败");
+        }
+        seckillOrderStatus.requeue(Long.valueOf(orderId.toString()), Long.valueOf(userId.toString()));
+        // 4.删除死信 XDEL
+        stringRedisTemplate.opsForStream().delete(deadLetterKey, deadLetterId);
+        return Result.ok(recordId.getValue());
+    }
+
+    @Override
+    public Result deleteDeadLetter(Integer partition, String deadLetterId) {
+        if (partition < 0 || partition >= seckillKeys.partitions()) {
+            return Result.fail("分区不存在");
+        }
+        Long deleted = stringRedisTemplate.opsForStream().delete(seckillKeys.deadLetterKey(partition), deadLetterId);
+        return deleted != null && deleted > 0 ? Result.ok() : Result.fail("死信不存在");
+    }
+
     /*private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
     private class VoucherOrderHandler implements Runnable{
 
@@ -144,7 +736,115 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
+    /**
+     * 批量创建订单：一条多值INSERT，每个优惠券一条聚合的库存扣减，整体在一个事务中完成。
+     * 任何一步失败都会整体回滚，消息留在pending-list中，由handlePendingList逐条重试
+     */
+    private void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.批内去重，同一用户同一优惠券只保留一条
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            unique.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        // 2.按优惠券分组
+        Map<Long, List<VoucherOrder>> byVoucher = unique.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+
+        transactionTemplate.executeWithoutResult(status -> {
+            List<VoucherOrder> toSave = new ArrayList<>(unique.size());
+            for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+                Long voucherId = entry.getKey();
+                List<VoucherOrder> orders = entry.getValue();
+                if (seckillProperties.getOrder().isIdempotentInsert()) {
+                    // 3.幂等模式：INSERT IGNORE 依赖主键和(user_id, voucher_id)唯一索引去重，按实际插入条数扣库存
+                    int inserted = getBaseMapper().insertIgnoreBatch(orders);
+                    deductStock(voucherId, inserted);
+                    continue;
+                }
+                // 3.一次查询出已经下过单的用户
+                List<Long> userIds = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList());
+                Set<Long> existUserIds = query().select("user_id")
+                        .eq("voucher_id", voucherId).in("user_id", userIds)
+                        .list().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+                orders.removeIf(order -> {
+                    if (existUserIds.contains(order.getUserId())) {
+                        log.error("不允许重复下单！userId={}, voucherId={}", order.getUserId(), voucherId);
+                        return true;
+                    }
+                    return false;
+                });
+                if (orders.isEmpty()) {
+                    continue;
+                }
+                // 4.聚合扣减库存
+                deductStock(voucherId, orders.size());
+                toSave.addAll(orders);
+            }
+            // 5.多值INSERT批量创建订单
+            if (!toSave.isEmpty()) {
+                getBaseMapper().insertBatch(toSave);
+            }
+        });
+        // 6.事务提交后记录订单状态，按id查询一次即可区分落库和被去重的订单（包括重复投递的消息）
+        List<Long> orderIds = voucherOrders.stream().map(VoucherOrder::getId).distinct().collect(Collectors.toList());
+        Set<Long> persisted = query().select("id").in("id", orderIds).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        seckillOrderStatus.markFinal(persisted, SeckillOrderStatus.PERSISTED);
+        schedulePayTimeout(persisted);
+        orderIds.removeAll(persisted);
+        seckillOrderStatus.markFinal(orderIds, SeckillOrderStatus.FAILED);
+    }
+
+    /**
+     * 聚合扣减库存 set stock = stock - n where voucher_id = ? and stock >= n，失败时抛出异常让事务回滚。
+     * 开启延迟聚合扣减时只在本地累计，事务提交后计入
+     */
+    private void deductStock(Long voucherId, int n) {
+        if (n <= 0) {
+            return;
+        }
+        if (seckillStockWriteBehind.isEnabled()) {
+            seckillStockWriteBehind.deduct(voucherId, n);
+            return;
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + n)
+                .eq("voucher_id", voucherId).ge("stock", n)
+                .update();
+        if (!success) {
+            throw new IllegalStateException("库存不足！voucherId=" + voucherId);
+        }
+    }
+
+    /**
+     * 幂等创建订单：不加锁也不查询，订单id作为主键，重复投递的消息插入时直接被忽略
+     */
+    private void createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        Integer inserted = transactionTemplate.execute(status -> {
+            int n = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+            deductStock(voucherOrder.getVoucherId(), n);
+            return n;
+        });
+        if (inserted != null && inserted > 0) {
+            seckillOrderStatus.markPersisted(voucherOrder.getId());
+            schedulePayTimeout(Collections.singleton(voucherOrder.getId()));
+            return;
+        }
+        // 没有插入：同一订单的重复消息，或者该用户已经有其他订单
+        log.debug("订单已存在，忽略重复消息，orderId={}", voucherOrder.getId());
+        if (getById(voucherOrder.getId()) != null) {
+            seckillOrderStatus.markPersisted(voucherOrder.getId());
+            schedulePayTimeout(Collections.singleton(voucherOrder.getId()));
+        } else {
+            seckillOrderStatus.markFailed(voucherOrder.getId());
+        }
+    }
+
     private void createVoucherOrder(VoucherOrder voucherOrder) {
+        if (seckillProperties.getOrder().isIdempotentInsert()) {
+            createVoucherOrderIdempotent(voucherOrder);
+            return;
+        }
         Long userId = voucherOrder.getUserId();
         Long voucherId = voucherOrder.getVoucherId();
         // 创建锁对象
@@ -154,21 +854,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 判断
         if (!isLock) {
             // 获取锁失败，直接返回失败或者重试
+            // 持有锁的线程可能正在处理同一订单（重复投递），订单状态交给它记录
             log.error("不允许重复下单！");
             return;
         }
 
         try {
             // 5.1.查询订单
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+            List<VoucherOrder> exists = query().select("id").eq("user_id", userId).eq("voucher_id", voucherId).list();
             // 5.2.判断是否存在
-            if (count > 0) {
-                // 用户已经购买过了
+            if (!exists.isEmpty()) {
+                // 用户已经购买过了，如果就是这个订单说明是重复投递的消息
                 log.error("不允许重复下单！");
+                if (exists.stream().anyMatch(order -> order.getId().equals(voucherOrder.getId()))) {
+                    seckillOrderStatus.markPersisted(voucherOrder.getId());
+                    schedulePayTimeout(Collections.singleton(voucherOrder.getId()));
+                } else {
+                    seckillOrderStatus.markFailed(voucherOrder.getId());
+                }
                 return;
             }
 
-            // 6.扣减库存
+            // 6.扣减库存，开启延迟聚合扣减时先创建订单，再在本地累计扣减数量
+            if (seckillStockWriteBehind.isEnabled()) {
+                save(voucherOrder);
+                seckillStockWriteBehind.deduct(voucherId, 1);
+                seckillOrderStatus.markPersisted(voucherOrder.getId());
+                schedulePayTimeout(Collections.singleton(voucherOrder.getId()));
+                return;
+            }
             boolean success = seckillVoucherService.update()
                     .setSql("stock = stock - 1") // set stock = stock - 1
                     .eq("voucher_id", voucherId).gt("stock", 0) // where id = ? and stock > 0
@@ -176,35 +890,421 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             if (!success) {
                 // 扣减失败
                 log.error("库存不足！");
+                seckillOrderStatus.markFailed(voucherOrder.getId());
                 return;
             }
 
             // 7.创建订单
             save(voucherOrder);
+            seckillOrderStatus.markPersisted(voucherOrder.getId());
+            schedulePayTimeout(Collections.singleton(voucherOrder.getId()));
         } finally {
             // 释放锁
             redisLock.unlock();
         }
     }
 
+    /**
+     * 订单落库后加入超时延时队列，重复投递的消息不会推迟原来的到期时间
+     * @param orderIds 已落库的订单id
+     */
+    private void schedulePayTimeout(Collection<Long> orderIds) {
+        SeckillProperties.PayTimeout config = seckillProperties.getPayTimeout();
+        if (!config.isEnabled() || orderIds.isEmpty()) {
+            return;
+        }
+        long deliverAt = System.currentTimeMillis() + config.getTimeout().toMillis();
+        Map<String, List<String>> byQueue = orderIds.stream().collect(Collectors.groupingBy(
+                seckillKeys::orderTimeoutKey, Collectors.mapping(String::valueOf, Collectors.toList())));
+        try {
+            byQueue.forEach((queueKey, members) -> redisDelayQueue.offer(queueKey, members, deliverAt));
+        } catch (Exception e) {
+            // 订单已经落库，加入延时队列失败不能让消息重试
+            log.error("加入支付超时队列异常，orders={}", orderIds, e);
+        }
+    }
+
+    /**
+     * 取出各分区到期的订单并取消，每次只读取到期的前batchSize个，不扫描整个队列
+     */
+    private void cancelExpiredOrders() {
+        SeckillProperties.PayTimeout config = seckillProperties.getPayTimeout();
+        for (int p = 0; p < seckillKeys.partitions(); p++) {
+            String queueKey = seckillKeys.orderTimeoutKey(p);
+            try {
+                List<String> orderIds;
+                do {
+                    long now = System.currentTimeMillis();
+                    // 1.取出到期的订单，同时推迟它们的到期时间，取消失败时稍后重试
+                    orderIds = redisDelayQueue.poll(queueKey, now, config.getBatchSize(),
+                            now + config.getRetryDelay().toMillis());
+                    for (String orderId : orderIds) {
+                        try {
+                            // 2.取消订单，完成后从队列中删除
+                            cancelUnpaidOrder(Long.valueOf(orderId));
+                            redisDelayQueue.remove(queueKey, orderId);
+                        } catch (Exception e) {
+                            log.error("取消超时订单异常，orderId={}", orderId, e);
+                        }
+                    }
+                    // 3.取满一批说明可能还有到期的订单，继续取
+                } while (orderIds.size() >= config.getBatchSize());
+            } catch (Exception e) {
+                log.error("处理支付超时队列异常，queue={}", queueKey, e);
+            }
+        }
+    }
+
+    /**
+     * 取消未支付的订单并归还库存。只有仍为未支付状态的订单才会被取消，已支付的订单直接忽略。
+     * 用户保留在一人一单集合中，取消后不能再次抢购同一优惠券
+     * @param orderId 订单id
+     */
+    private void cancelUnpaidOrder(Long orderId) {
+        VoucherOrder order = query().select("id", "user_id", "voucher_id").eq("id", orderId).one();
+        if (order == null) {
+            return;
+        }
+        Long voucherId = order.getVoucherId();
+        // 1.更新订单状态并归还数据库库存，在同一个事务中完成
+        Boolean cancelled = transactionTemplate.execute(status -> {
+            // update tb_voucher_order set status = 4 where id = ? and status = 1
+            boolean updated = update().set("status", 4).set("update_time", LocalDateTime.now())
+                    .eq("id", orderId).eq("status", 1).update();
+            if (!updated) {
+                return false;
+            }
+            seckillVoucherService.update()
+                    .setSql("stock = stock + 1")
+                    .eq("voucher_id", voucherId)
+                    .update();
+            return true;
+        });
+        if (!Boolean.TRUE.equals(cancelled)) {
+            return;
+        }
+        // 2.事务提交后归还Redis库存：分段模式归还到用户所属分段，配额模式归还到共享库存
+        // 提交后宕机会少归还一件库存，只会少卖不会超卖
+        // 分段数从Redis读取最新值，不能用本地缓存的旧分段数写入已经废弃的key
+        int segments = loadSegments(voucherId);
+        String stockKey = segments > 1
+                ? seckillKeys.stockKey(voucherId, segments, Math.floorMod(order.getUserId().hashCode(), segments))
+                : seckillKeys.stockKey(voucherId);
+        stringRedisTemplate.opsForValue().increment(stockKey);
+        // 3.有了库存，清除售罄标记。本实例可能没有标记，但其他实例可能已经标记，总是广播清除
+        seckillSoldOutRegistry.clear(voucherId);
+        log.debug("取消超时未支付订单，orderId={}, voucherId={}", orderId, voucherId);
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 先用本地缓存的时间窗口校验，秒杀开始前和结束后的请求不再访问Redis
+        long now = System.currentTimeMillis();
+        int window = seckillVoucherSchedule.check(voucherId, now);
+        if (window != SeckillVoucherSchedule.IN_WINDOW) {
+            return Result.fail(seckillFailMessage(window));
+        }
+        // 本地已经标记售罄，直接返回，不再访问Redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userId = UserHolder.getUser().getId();
+        // 开启等候室时，只有已经放行的用户才能下单
+        if (seckillWaitingRoom.isEnabled()) {
+            int room = seckillWaitingRoom.check(voucherId, userId);
+            if (room != SeckillWaitingRoom.ADMITTED) {
+                return Result.fail(seckillFailMessage(room));
+            }
+        }
         long orderId = redisIdWorker.nextId("order");
         // 1.执行lua脚本
+        int segments = querySegments(voucherId);
+        int r;
+        if (segments > 1) {
+            r = seckillBySegment(voucherId, userId, orderId, segments);
+        } else if (seckillProperties.getStock().isQuotaEnabled()) {
+            r = seckillByQuota(voucherId, userId, orderId);
+        } else {
+            int partition = seckillKeys.partitionOf(voucherId);
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId), seckillKeys.orderKey(voucherId),
+                            seckillKeys.windowKey(voucherId, partition), seckillKeys.orderStreamKey(partition, userId)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId)
+            );
+            r = result.intValue();
+        }
+        // 2.判断结果是否为0
+        if (r != 0) {
+            // 2.1.不为0 ，代表没有购买资格
+            if (r == SeckillVoucherSchedule.NOT_PREHEATED) {
+                // 库存不存在，可能是本地缓存的分段数已经过时，下次重新读取
+                segmentsCache.remove(voucherId);
+            }
+            if (r == 1) {
+                // 2.2.库存不足，标记售罄并通知其他实例
+                markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
+        }
+        // 3.记录订单状态，返回订单id
+        seckillOrderStatus.markQueued(orderId, userId);
+        return Result.ok(orderId);
+    }
+
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+        // 本地校验不访问Redis，直接在请求线程完成
+        long now = System.currentTimeMillis();
+        int window = seckillVoucherSchedule.check(voucherId, now);
+        if (window != SeckillVoucherSchedule.IN_WINDOW) {
+            return CompletableFuture.completedFuture(Result.fail(seckillFailMessage(window)));
+        }
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
+        }
+        // 回调线程池快满时直接拒绝，一个请求最多提交三个回调，避免在Lettuce的IO线程上提交时被拒绝
+        if (((ThreadPoolExecutor) seckillCallbackExecutor).getQueue().remainingCapacity() < 3) {
+            return CompletableFuture.completedFuture(Result.fail("系统繁忙，请稍后重试"));
+        }
+        // 回调在其他线程执行，取不到ThreadLocal中的用户，提前取出
+        Long userId = UserHolder.getUser().getId();
+        // 开启等候室时先异步校验是否已经放行
+        CompletableFuture<Integer> room = seckillWaitingRoom.isEnabled()
+                ? seckillWaitingRoom.checkAsync(voucherId, userId)
+                : CompletableFuture.completedFuture(SeckillWaitingRoom.ADMITTED);
+        try {
+            return room.thenComposeAsync(admitted -> admitted != SeckillWaitingRoom.ADMITTED
+                    ? CompletableFuture.completedFuture(Result.fail(seckillFailMessage(admitted)))
+                    : seckillVoucherAsync(voucherId, userId), seckillCallbackExecutor)
+                    .exceptionally(e -> {
+                        // 回调线程池已满，直接拒绝，不在IO线程上排队
+                        if (e instanceof RejectedExecutionException || e.getCause() instanceof RejectedExecutionException) {
+                            return Result.fail("系统繁忙，请稍后重试");
+                        }
+                        throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                    });
+        } catch (RejectedExecutionException e) {
+            // 前一步已经完成时在当前线程提交回调，线程池满了直接抛出
+            return CompletableFuture.completedFuture(Result.fail("系统繁忙，请稍后重试"));
+        }
+    }
+
+    private CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId) {
+        // 1.异步生成订单id，再异步执行lua脚本；回调切换到专用的有界线程池，
+        // 避免在Lettuce的IO线程或JVM共享的ForkJoinPool上执行阻塞操作
+        return redisIdWorker.nextIdAsync("order")
+                .thenComposeAsync(orderId -> seckillAsync(voucherId, userId, orderId)
+                        .thenApplyAsync(r -> {
+                            // 2.判断结果是否为0
+                            if (r != 0) {
+                                if (r == SeckillVoucherSchedule.NOT_PREHEATED) {
+                                    segmentsCache.remove(voucherId);
+                                }
+                                if (r == 1) {
+                                    markSoldOut(voucherId);
+                                }
+                                return Result.fail(seckillFailMessage(r));
+                            }
+                            // 3.记录订单状态，返回订单id
+                            seckillOrderStatus.markQueued(orderId, userId);
+                            return Result.ok(orderId);
+                        }, seckillCallbackExecutor), seckillCallbackExecutor);
+    }
+
+    @Override
+    public Result takeSeckillTicket(Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            return Result.fail("未开启排队");
+        }
+        // 已经结束或售罄的秒杀不再发号
+        int window = seckillVoucherSchedule.check(voucherId, System.currentTimeMillis());
+        if (window == SeckillVoucherSchedule.ENDED) {
+            return Result.fail(seckillFailMessage(window));
+        }
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return Result.ok(seckillWaitingRoom.takeTicket(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public Result querySeckillPosition(Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            return Result.fail("未开启排队");
+        }
+        SeckillPosition position = seckillWaitingRoom.position(voucherId, UserHolder.getUser().getId());
+        if (position == null) {
+            return Result.fail(seckillFailMessage(SeckillWaitingRoom.NO_TICKET));
+        }
+        return Result.ok(position);
+    }
+
+    private CompletableFuture<Integer> seckillAsync(Long voucherId, Long userId, long orderId) {
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        int segments = querySegments(voucherId);
+        if (segments > 1) {
+            int home = Math.floorMod(userId.hashCode(), segments);
+            int partition = seckillKeys.partitionOf(voucherId, home);
+            String orderKey = seckillKeys.orderKey(voucherId, segments, home);
+            return executeAsync(SECKILL_SEGMENT_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId, segments, home), orderKey,
+                            seckillKeys.windowKey(voucherId, partition), seckillKeys.orderStreamKey(partition, userId)),
+                    args)
+                    // 所属分段库存不足时才需要借库存，不是热点路径，复用同步逻辑
+                    .thenApplyAsync(r -> r != BORROW ? r
+                            : borrowStock(voucherId, userId, orderId, segments, home, orderKey),
+                            seckillCallbackExecutor);
+        }
+        int partition = seckillKeys.partitionOf(voucherId);
+        if (seckillProperties.getStock().isQuotaEnabled()) {
+            // 本地配额只在租借新一批库存时访问Redis
+            int acquired = seckillStockQuota.tryAcquire(voucherId);
+            if (acquired != 0) {
+                return CompletableFuture.completedFuture(acquired);
+            }
+            return executeAsync(SECKILL_QUOTA_SCRIPT,
+                    Arrays.asList(seckillKeys.orderKey(voucherId), seckillKeys.windowKey(voucherId, partition),
+                            seckillKeys.orderStreamKey(partition, userId)),
+                    args)
+                    .whenComplete((r, e) -> {
+                        if (e != null || r != 0) {
+                            seckillStockQuota.release(voucherId);
+                        }
+                    });
+        }
+        return executeAsync(SECKILL_SCRIPT,
+                Arrays.asList(seckillKeys.stockKey(voucherId), seckillKeys.orderKey(voucherId),
+                        seckillKeys.windowKey(voucherId, partition), seckillKeys.orderStreamKey(partition, userId)),
+                args);
+    }
+
+    /**
+     * 通过Lettuce的响应式API执行lua脚本，不阻塞调用线程
+     */
+    private CompletableFuture<Integer> executeAsync(RedisScript<Long> script, List<String> keys, String... args) {
+        return reactiveStringRedisTemplate.execute(script, keys, Arrays.asList(args))
+                .next()
+                .map(Long::intValue)
+                .toFuture();
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case SeckillVoucherSchedule.NOT_STARTED:
+                return "秒杀尚未开始！";
+            case SeckillVoucherSchedule.ENDED:
+                return "秒杀已经结束！";
+            case SeckillVoucherSchedule.NOT_PREHEATED:
+                return "秒杀准备中，请稍后重试";
+            case SeckillWaitingRoom.NO_TICKET:
+                return "请先排队";
+            case SeckillWaitingRoom.WAITING:
+                return "排队中，请稍后";
+            default:
+                return "下单失败";
+        }
+    }
+
+    /**
+     * 标记售罄。本地配额模式下走到这里说明本实例的配额和Redis共享库存都已用完，
+     * 但其他实例可能还持有配额，只在本地标记，不广播
+     */
+    private void markSoldOut(Long voucherId) {
+        if (seckillProperties.getStock().isQuotaEnabled() && querySegments(voucherId) <= 1) {
+            seckillSoldOutRegistry.markSoldOutLocally(voucherId);
+            return;
+        }
+        seckillSoldOutRegistry.markSoldOut(voucherId);
+    }
+
+    private int querySegments(Long voucherId) {
+        Integer cached = segmentsCache.get(voucherId, false);
+        if (cached != null) {
+            return cached;
+        }
+        int segments = loadSegments(voucherId);
+        segmentsCache.put(voucherId, segments);
+        return segments;
+    }
+
+    private int loadSegments(Long voucherId) {
+        String segmentsStr = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        return StrUtil.isBlank(segmentsStr) ? 1 : Integer.parseInt(segmentsStr);
+    }
+
+    /**
+     * 分段库存秒杀：用户按userId哈希固定到一个分段，去重集合始终使用该分段，保证一人一单；
+     * 该分段库存不足时依次向相邻分段借库存，每次脚本调用只操作一个分段的key。
+     * key带有分段数，本地缓存的分段数过时时访问不到库存，返回未预热，不会写入另一套去重集合
+     */
+    private int seckillBySegment(Long voucherId, Long userId, long orderId, int segments) {
+        int home = Math.floorMod(userId.hashCode(), segments);
+        int partition = seckillKeys.partitionOf(voucherId, home);
+        String orderKey = seckillKeys.orderKey(voucherId, segments, home);
+        // 1.在用户所属分段上尝试下单
         Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
+                SECKILL_SEGMENT_SCRIPT,
+                Arrays.asList(seckillKeys.stockKey(voucherId, segments, home), orderKey,
+                        seckillKeys.windowKey(voucherId, partition), seckillKeys.orderStreamKey(partition, userId)),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId)
+        );
+        int r = result.intValue();
+        if (r != BORROW) {
+            return r;
+        }
+        // 2.所属分段库存不足，去重名额已经占住，依次向相邻分段借库存
+        return borrowStock(voucherId, userId, orderId, segments, home, orderKey);
+    }
+
+    /**
+     * 依次向相邻分段借一个库存，扣库存和发送订单消息在同一个脚本中完成，
+     * 消息发送到与被借分段同一分区的队列中，保证脚本访问的key在同一slot。都没有库存时释放占住的去重名额
+     */
+    private int borrowStock(Long voucherId, Long userId, long orderId, int segments, int home, String orderKey) {
+        for (int i = 1; i < segments; i++) {
+            int segment = (home + i) % segments;
+            int partition = seckillKeys.partitionOf(voucherId, segment);
+            Long borrowed = stringRedisTemplate.execute(
+                    STOCK_BORROW_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId, segments, segment), seckillKeys.orderStreamKey(partition, userId)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId));
+            if (borrowed != null && borrowed == 1L) {
+                return 0;
+            }
+        }
+        // 所有分段都没有库存，释放占住的去重名额
+        stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        return 1;
+    }
+
+    /**
+     * 本地库存配额秒杀：库存在JVM内扣减，Redis只负责一人一单校验和发送消息
+     */
+    private int seckillByQuota(Long voucherId, Long userId, long orderId) {
+        // 1.扣减本地配额
+        int acquired = seckillStockQuota.tryAcquire(voucherId);
+        if (acquired != 0) {
+            return acquired;
+        }
+        // 2.一人一单校验并发送消息
+        int partition = seckillKeys.partitionOf(voucherId);
+        Long result = stringRedisTemplate.execute(
+                SECKILL_QUOTA_SCRIPT,
+                Arrays.asList(seckillKeys.orderKey(voucherId), seckillKeys.windowKey(voucherId, partition),
+                        seckillKeys.orderStreamKey(partition, userId)),
                 voucherId.toString(), userId.toString(), String.valueOf(orderId)
         );
         int r = result.intValue();
-        // 2.判断结果是否为0
         if (r != 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            // 2.1.没有下单，归还配额
+            seckillStockQuota.release(voucherId);
         }
-        // 3.返回订单id
-        return Result.ok(orderId);
+        return r;
     }
 
     /*@Override
@@ -1,20 +1,39 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockWriteBehind;
+import com.hmdp.utils.SeckillVoucherSchedule;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -24,6 +43,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author pht
  * @since 2022-06
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -31,6 +51,22 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillVoucherSchedule seckillVoucherSchedule;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private SeckillKeys seckillKeys;
+    @Resource
+    private SeckillStockWriteBehind seckillStockWriteBehind;
+
+    private final ScheduledExecutorService seckillPreheatExecutor = Executors.newSingleThreadScheduledExecutor();
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,7 +88,167 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        int segments = seckillProperties.getStock().getSegments();
+        // 保存秒杀时间窗口到Redis和本地缓存中
+        seckillVoucherSchedule.update(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), segments);
         // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        saveSeckillStock(voucher.getId(), voucher.getStock(), segments);
+    }
+
+    private void saveSeckillStock(Long voucherId, int stock, int segments) {
+        String previousStr = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        int previous = previousStr == null ? 1 : Integer.parseInt(previousStr);
+        if (segments <= 1) {
+            stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId), String.valueOf(stock));
+            // 之前可能是分段模式，删除分段数，下单时按不分段路由
+            stringRedisTemplate.delete(SECKILL_SEGMENTS_KEY + voucherId);
+        } else {
+            // 分段模式：把库存平均拆到多个key中，余数分给前面的分段
+            for (int i = 0; i < segments; i++) {
+                int segmentStock = stock / segments + (i < stock % segments ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, segments, i), String.valueOf(segmentStock));
+            }
+            stringRedisTemplate.opsForValue().set(SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(segments));
+        }
+        // 分段数变化时删除旧布局的库存，还在使用旧分段数的实例下单时返回未预热，重新读取分段数
+        if (previous != segments) {
+            deleteSeckillStock(voucherId, previous);
+        }
+    }
+
+    private void deleteSeckillStock(Long voucherId, int segments) {
+        if (segments <= 1) {
+            stringRedisTemplate.delete(seckillKeys.stockKey(voucherId));
+            return;
+        }
+        // 分段的key在不同slot，逐个删除
+        for (int i = 0; i < segments; i++) {
+            stringRedisTemplate.delete(seckillKeys.stockKey(voucherId, segments, i));
+        }
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        // 1.更新数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2.补充Redis库存，分段模式下平均补充到各个分段
+        String segmentsStr = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        int segments = segmentsStr == null ? 1 : Integer.parseInt(segmentsStr);
+        if (segments <= 1) {
+            stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId), count);
+        } else {
+            for (int i = 0; i < segments; i++) {
+                int segmentStock = count / segments + (i < count % segments ? 1 : 0);
+                if (segmentStock > 0) {
+                    stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId, segments, i), segmentStock);
+                }
+            }
+        }
+        // 3.清除售罄标记
+        seckillSoldOutRegistry.clear(voucherId);
+        return Result.ok();
+    }
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Preheat config = seckillProperties.getPreheat();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long interval = config.getInterval().toMillis();
+        seckillPreheatExecutor.scheduleWithFixedDelay(this::preheatSeckillVouchers, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckillPreheatExecutor.shutdownNow();
+    }
+
+    /**
+     * 扫描即将开始和正在进行的秒杀，把库存、一人一单集合和时间窗口预热到Redis中
+     */
+    private void preheatSeckillVouchers() {
+        // 多个实例只需要一个执行预热
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_PREHEAT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plus(seckillProperties.getPreheat().getLookahead()))
+                    .gt("end_time", now)
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    // 已经预热过的跳过
+                    if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_READY_KEY + voucher.getVoucherId()))) {
+                        continue;
+                    }
+                    preheatSeckillVoucher(voucher);
+                } catch (Exception e) {
+                    log.error("秒杀预热异常，voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀预热异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void preheatSeckillVoucher(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        // 1.确定分段数，Redis中已有分段信息时沿用
+        String segmentsStr = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        int segments = segmentsStr == null ? seckillProperties.getStock().getSegments() : Integer.parseInt(segmentsStr);
+        // 2.Redis中没有库存时才用数据库库存初始化，已有库存说明Redis数据完好，它才是准确的
+        String stockKey = segments <= 1 ? seckillKeys.stockKey(voucherId) : seckillKeys.stockKey(voucherId, segments, 0);
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKey))) {
+            // 2.1.聚合扣减开启时先把累计的扣减写入数据库，仍有没写入的扣减说明数据库库存偏大，
+            // 用它初始化会超卖，这次不预热，等下次扫描
+            if (seckillStockWriteBehind.isEnabled() && !seckillStockWriteBehind.flush(voucherId)) {
+                log.warn("秒杀券还有未写入数据库的库存扣减，推迟预热，voucherId={}", voucherId);
+                return;
+            }
+            // 2.2.刷新后重新读取数据库库存
+            SeckillVoucher latest = seckillVoucherService.getById(voucherId);
+            if (latest == null) {
+                return;
+            }
+            saveSeckillStock(voucherId, latest.getStock(), segments);
+        }
+        // 3.根据已有订单重建一人一单集合，分段模式下按用户所属分段写入。
+        // 已取消（超时未支付）的订单同样占用下单资格，与数据库的一人一单校验保持一致
+        List<VoucherOrder> orders = voucherOrderService.query()
+                .select("user_id").eq("voucher_id", voucherId).list();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                String orderKey = segments <= 1 ? seckillKeys.orderKey(voucherId)
+                        // 与下单时的分段路由保持一致
+                        : seckillKeys.orderKey(voucherId, segments, Math.floorMod(order.getUserId().hashCode(), segments));
+                conn.sAdd(orderKey, order.getUserId().toString());
+            }
+            return null;
+        });
+        // 4.时间窗口
+        seckillVoucherSchedule.update(voucherId, voucher.getBeginTime(), voucher.getEndTime(), segments);
+        // 5.标记预热完成，秒杀结束后自动过期
+        long ttl = Math.max(Duration.between(LocalDateTime.now(), voucher.getEndTime()).getSeconds(), 1);
+        stringRedisTemplate.opsForValue().set(SECKILL_READY_KEY + voucherId, "1", ttl, TimeUnit.SECONDS);
+        // 6.库存已经就绪，清除预热前可能误打的售罄标记
+        seckillSoldOutRegistry.clear(voucherId);
+        log.info("秒杀预热完成，voucherId={}, orders={}", voucherId, orders.size());
     }
 }
@@ -1,19 +1,39 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 
@@ -22,15 +42,129 @@ import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final CacheProperties cacheProperties;
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 记录上一次重建耗时的key后缀，用于提前刷新的概率计算
+     */
+    private static final String DELTA_SUFFIX = ":delta";
+
+    /**
+     * 进程内一级缓存，保存反序列化后的对象，按数量（LRU）和有效期淘汰；未开启时为null
+     */
+    private LRUCache<String, Object> localCache;
+
+    /**
+     * 正在重建的缓存key及其结果，用于合并同一实例内的并发重建
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                       CacheProperties cacheProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.cacheProperties = cacheProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.Local config = cacheProperties.getLocal();
+        if (!config.isEnabled()) {
+            return;
+        }
+        localCache = CacheUtil.newLRUCache(config.getMaximumSize(), config.getTtl().toMillis());
+        // 其他实例删除缓存时，同时淘汰本地的一级缓存，消息内容为缓存key
+        listenerContainer.addMessageListener((message, pattern) ->
+                localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), jitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
+        if (localCache != null) {
+            localCache.remove(key);
+        }
+    }
+
+    /**
+     * 写入缓存，同时记录这次从数据库重建的耗时，两个key使用相同的有效期
+     * @param costMillis 重建耗时（毫秒）
+     */
+    private void setWithCost(String key, Object value, Long time, TimeUnit unit, long costMillis) {
+        long ttl = jitter(unit.toMillis(time));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.pSetEx(key, ttl, JSONUtil.toJsonStr(value));
+            conn.pSetEx(key + DELTA_SUFFIX, ttl, String.valueOf(costMillis));
+            return null;
+        });
+        if (localCache != null) {
+            localCache.remove(key);
+        }
+    }
+
+    /**
+     * 写入空值，防止缓存穿透
+     */
+    private void setNull(String key) {
+        stringRedisTemplate.opsForValue().set(key, "", jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 有效期加上 [0, ttlJitter) 比例的随机值，同时写入的key不会在同一时刻过期
+     */
+    private long jitter(long ttlMillis) {
+        double ratio = cacheProperties.getTtlJitter();
+        if (ratio <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ttlMillis * ratio * RandomUtil.randomDouble());
+    }
+
+    /**
+     * 删除缓存：删除Redis中的key，并广播给所有实例淘汰一级缓存。更新数据库后调用
+     * @param key 缓存key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        if (localCache == null) {
+            return;
+        }
+        localCache.remove(key);
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            // 广播失败时其他实例的一级缓存最多在有效期后失效
+            log.error("广播缓存失效异常，key={}", key, e);
+        }
+    }
+
+    /**
+     * 查询一级缓存，返回副本，调用方修改返回的对象不会影响缓存
+     */
+    private <R> R getLocal(String key, Class<R> type) {
+        if (localCache == null) {
+            return null;
+        }
+        Object value = localCache.get(key, false);
+        return value == null ? null : BeanUtil.copyProperties(value, type);
+    }
+
+    private void putLocal(String key, Object value) {
+        if (localCache != null) {
+            localCache.put(key, value);
+        }
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
@@ -44,13 +178,34 @@ public class CacheClient {
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, null);
+    }
+
+    /**
+     * 缓存穿透：先用布隆过滤器拦截一定不存在的id，不访问缓存也不查询数据库
+     * @param bloomFilter 包含所有存在id的布隆过滤器，为null时只依靠缓存空值
+     */
+    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                         Long time, TimeUnit unit, RedisBloomFilter bloomFilter){
+        if (bloomFilter != null && !bloomFilter.mightContain(id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 先查一级缓存，命中时不访问Redis
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        // 1.从redis查询商铺缓存，开启提前刷新时同时查询剩余有效期和上次重建耗时
+        String json = cacheProperties.getEarlyRefresh().isEnabled()
+                ? getAndRefreshEarly(key, id, dbFallback, time, unit)
+                : stringRedisTemplate.opsForValue().get(key);
         // 2.判断是否存在
         if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            // 3.存在，写入一级缓存并返回
+            R r = JSONUtil.toBean(json, type);
+            putLocal(key, r);
+            return BeanUtil.copyProperties(r, type);
         }
         // 判断命中的是否是空值
         if (json != null) {
@@ -59,19 +214,151 @@ public class CacheClient {
         }
 
         // 4.不存在，根据id查询数据库
+        long begin = System.currentTimeMillis();
         R r = dbFallback.apply(id);
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             // 返回错误信息
             return null;
         }
         // 6.存在，写入redis
-        this.set(key, r, time, unit);
+        if (cacheProperties.getEarlyRefresh().isEnabled()) {
+            setWithCost(key, r, time, unit, System.currentTimeMillis() - begin);
+        } else {
+            this.set(key, r, time, unit);
+        }
+        putLocal(key, BeanUtil.copyProperties(r, type));
         return r;
     }
 
+    /**
+     * XFetch提前刷新：一次pipeline查询 值、剩余有效期、上次重建耗时delta，
+     * 当 -delta * beta * ln(random) >= 剩余有效期 时异步重建。越接近过期、重建越慢，提前刷新的概率越大，
+     * 热点key在过期之前就会被某个请求刷新，不会真正过期
+     * @return 缓存的值
+     */
+    private <R, ID> String getAndRefreshEarly(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.get(key);
+            conn.pTtl(key);
+            conn.get(key + DELTA_SUFFIX);
+            return null;
+        });
+        String json = (String) results.get(0);
+        Long ttl = (Long) results.get(1);
+        String delta = (String) results.get(2);
+        if (StrUtil.isBlank(json) || ttl == null || ttl < 0 || StrUtil.isBlank(delta)) {
+            return json;
+        }
+        double beta = cacheProperties.getEarlyRefresh().getBeta();
+        // random取(0,1]，避免ln(0)
+        double random = 1.0 - RandomUtil.randomDouble();
+        if (-Long.parseLong(delta) * beta * Math.log(random) >= ttl) {
+            refreshAsync(key, id, dbFallback, time, unit);
+        }
+        return json;
+    }
+
+    private <R, ID> void refreshAsync(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 多个请求同时命中时只有获取到锁的请求刷新
+        String lockKey = LOCK_SHOP_KEY + id;
+        String lockToken = tryLock(lockKey);
+        if (lockToken == null) {
+            return;
+        }
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                long begin = System.currentTimeMillis();
+                R r = dbFallback.apply(id);
+                if (r == null) {
+                    setNull(key);
+                    return;
+                }
+                setWithCost(key, r, time, unit, System.currentTimeMillis() - begin);
+            } catch (Exception e) {
+                log.error("提前刷新缓存异常，key={}", key, e);
+            } finally {
+                unlock(lockKey, lockToken);
+            }
+        });
+    }
+
+    /**
+     * 批量查询：一次MGET查询缓存，未命中的id一次批量查询数据库，再用一次pipeline写回缓存（不存在的id写入空值）
+     * @param ids 要查询的id，结果按该顺序返回，不存在的id不出现在结果中
+     * @param dbBatchFallback 按id批量查询数据库，例如 listByIds
+     * @param idGetter 从查询结果中取出id，用于把数据库结果对应回id
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                      Function<List<ID>, ? extends Collection<R>> dbBatchFallback,
+                                      Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<ID, R> found = new HashMap<>(ids.size());
+        // 1.先查一级缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R local = getLocal(keyPrefix + id, type);
+            if (local != null) {
+                found.put(id, local);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        // 2.一次MGET查询Redis，收集未命中的id，命中空值的id直接跳过
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                String json = jsons == null ? null : jsons.get(i);
+                if (StrUtil.isNotBlank(json)) {
+                    R r = JSONUtil.toBean(json, type);
+                    putLocal(keys.get(i), r);
+                    found.put(remoteIds.get(i), BeanUtil.copyProperties(r, type));
+                } else if (json == null) {
+                    missIds.add(remoteIds.get(i));
+                }
+            }
+        }
+        // 3.未命中的id一次查询数据库，再用一次pipeline写回Redis
+        if (!missIds.isEmpty()) {
+            Collection<R> loaded = dbBatchFallback.apply(missIds);
+            Map<ID, R> loadedById = new HashMap<>(loaded.size());
+            for (R r : loaded) {
+                loadedById.put(idGetter.apply(r), r);
+            }
+            long millis = unit.toMillis(time);
+            long nullMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (ID id : missIds) {
+                    R r = loadedById.get(id);
+                    // 不存在的id写入空值，避免缓存穿透
+                    conn.pSetEx(keyPrefix + id, jitter(r == null ? nullMillis : millis), r == null ? "" : JSONUtil.toJsonStr(r));
+                }
+                return null;
+            });
+            found.putAll(loadedById);
+        }
+        // 4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
@@ -95,9 +382,9 @@ public class CacheClient {
         // 6.缓存重建
         // 6.1.获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        String lockToken = tryLock(lockKey);
         // 6.2.判断是否获取锁成功
-        if (isLock){
+        if (lockToken != null){
             // 6.3.成功，开启独立线程，实现缓存重建
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
@@ -109,7 +396,7 @@ public class CacheClient {
                     throw new RuntimeException(e);
                 }finally {
                     // 释放锁
-                    unlock(lockKey);
+                    unlock(lockKey, lockToken);
                 }
             });
         }
@@ -120,12 +407,19 @@ public class CacheClient {
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 先查一级缓存，命中时不访问Redis
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
         // 1.从redis查询商铺缓存
         String shopJson = stringRedisTemplate.opsForValue().get(key);
         // 2.判断是否存在
         if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            // 3.存在，写入一级缓存并返回
+            R r = JSONUtil.toBean(shopJson, type);
+            putLocal(key, r);
+            return BeanUtil.copyProperties(r, type);
         }
         // 判断命中的是否是空值
         if (shopJson != null) {
@@ -133,45 +427,128 @@ public class CacheClient {
             return null;
         }
 
-        // 4.实现缓存重建
+        // 4.实现缓存重建，同一个key在本实例内只有一个线程（leader）重建，其他线程等待它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return awaitFlight(existing, key, id, type, dbFallback);
+        }
+        try {
+            R r = rebuildWithMutex(key, id, type, dbFallback, time, unit);
+            // 等待的线程从该对象复制结果，返回给leader调用方的是另一份副本
+            flight.complete(r);
+            return r == null ? null : BeanUtil.copyProperties(r, type);
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * 等待leader重建的结果，不轮询Redis。leader最多等锁waitTimeout后还要查询数据库，
+     * 所以等待时间是waitTimeout加上loadTimeout，避免和leader同时超时一起查询数据库。
+     * 超时或leader失败时先再查一次Redis，仍未命中才直接查询数据库返回，不写缓存
+     */
+    private <R, ID> R awaitFlight(CompletableFuture<Object> flight, String key, ID id, Class<R> type,
+                                  Function<ID, R> dbFallback) {
+        CacheProperties.Rebuild config = cacheProperties.getRebuild();
+        long timeout = config.getWaitTimeout().toMillis() + config.getLoadTimeout().toMillis();
+        try {
+            Object value = flight.get(timeout, TimeUnit.MILLISECONDS);
+            // 返回副本，多个调用方拿到的是不同的对象
+            return value == null ? null : BeanUtil.copyProperties(value, type);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException | TimeoutException e) {
+            // 其他实例可能已经重建完成
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(json)) {
+                return JSONUtil.toBean(json, type);
+            }
+            if (json != null) {
+                return null;
+            }
+            log.warn("等待缓存重建失败，直接查询数据库，id={}", id, e);
+            return dbFallback.apply(id);
+        }
+    }
+
+    /**
+     * leader重建缓存：竞争Redis互斥锁（其他实例可能正在重建），获取失败时间隔重试并检查缓存是否已经写入，
+     * 超过最长等待时间后直接查询数据库
+     */
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        CacheProperties.Rebuild config = cacheProperties.getRebuild();
+        long deadline = System.currentTimeMillis() + config.getWaitTimeout().toMillis();
         // 4.1.获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        String lockToken;
+        while ((lockToken = tryLock(lockKey)) == null) {
+            // 4.2.获取锁失败，超时后降级查询数据库
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("获取缓存重建锁超时，直接查询数据库，key={}", key);
+                return dbFallback.apply(id);
+            }
+            // 4.3.休眠后检查其他实例是否已经重建完成
+            try {
+                Thread.sleep(config.getRetryInterval().toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(json)) {
+                return JSONUtil.toBean(json, type);
+            }
+            if (json != null) {
+                return null;
+            }
+        }
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            // 4.4.获取锁成功，再次检查缓存，可能在获取锁之前刚被重建
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(json)) {
+                return JSONUtil.toBean(json, type);
+            }
+            if (json != null) {
+                return null;
             }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
+            // 4.5.根据id查询数据库
+            R r = dbFallback.apply(id);
             // 5.不存在，返回错误
             if (r == null) {
                 // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                setNull(key);
                 // 返回错误信息
                 return null;
             }
             // 6.存在，写入redis
             this.set(key, r, time, unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
+            putLocal(key, BeanUtil.copyProperties(r, type));
+            return r;
+        } finally {
+            // 7.释放锁，只释放自己获取到的锁
+            unlock(lockKey, lockToken);
         }
-        // 8.返回
-        return r;
     }
 
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    /**
+     * 获取互斥锁，锁的值是本次获取的随机标识
+     * @return 获取成功返回锁标识，用于释放锁; 获取失败返回null
+     */
+    private String tryLock(String key) {
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, 10, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag) ? token : null;
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    /**
+     * 释放互斥锁，标识一致才删除，锁过期后被其他线程获取时不会误删
+     */
+    private void unlock(String key, String token) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 }
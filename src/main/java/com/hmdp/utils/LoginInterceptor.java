@@ -6,6 +6,7 @@ import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -21,6 +22,10 @@ public class LoginInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+       //异步请求完成后的再次分发，第一次分发时已经校验过
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
        //判断是否需要拦截（ThreadLocal中是否有用户）
         if(UserHolder.getUser() == null){
             response.setStatus(401);
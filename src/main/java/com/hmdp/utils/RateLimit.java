@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.*;
+
+/**
+ * 接口限流，规则在application.yaml的hmdp.rate-limit.rules中按名称配置，由RateLimitInterceptor执行
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface RateLimit {
+
+    /**
+     * 规则名称
+     */
+    String value();
+
+    /**
+     * 全局限流按哪个路径变量区分资源，例如秒杀接口的 id（优惠券id），为空时整个接口共用一个桶
+     */
+    String resource() default "";
+}
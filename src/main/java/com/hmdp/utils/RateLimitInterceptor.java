@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 执行@RateLimit标注的接口限流，依次校验 每个用户、每个IP、每个资源全局 三个令牌桶
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final RedisRateLimiter rateLimiter;
+    private final RateLimitProperties rateLimitProperties;
+
+    public RateLimitInterceptor(RedisRateLimiter rateLimiter, RateLimitProperties rateLimitProperties) {
+        this.rateLimiter = rateLimiter;
+        this.rateLimitProperties = rateLimitProperties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后的再次分发不再限流
+        if (request.getDispatcherType() == DispatcherType.ASYNC || !(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        RateLimit rateLimit = ((HandlerMethod) handler).getMethodAnnotation(RateLimit.class);
+        if (rateLimit == null || !rateLimitProperties.isEnabled()) {
+            return true;
+        }
+        RateLimitProperties.Rule rule = rateLimitProperties.getRules().get(rateLimit.value());
+        if (rule == null) {
+            return true;
+        }
+        String name = rateLimit.value();
+        //1.每个用户
+        UserDTO user = UserHolder.getUser();
+        if (user != null && !rateLimiter.tryAcquire(name + ":user:" + user.getId(), rule.getUser(), true)) {
+            return reject(response);
+        }
+        //2.每个IP
+        if (!rateLimiter.tryAcquire(name + ":ip:" + clientIp(request), rule.getIp(), true)) {
+            return reject(response);
+        }
+        //3.每个资源全局，请求分散在各个实例上，不做本地预过滤
+        if (!rateLimiter.tryAcquire(name + ":global:" + resource(request, rateLimit), rule.getGlobal(), false)) {
+            return reject(response);
+        }
+        return true;
+    }
+
+    private String clientIp(HttpServletRequest request) {
+        String header = rateLimitProperties.getIpHeader();
+        if (StrUtil.isNotBlank(header)) {
+            String ip = request.getHeader(header);
+            if (StrUtil.isNotBlank(ip)) {
+                // X-Forwarded-For 可能是逗号分隔的多个地址，第一个是客户端
+                return StrUtil.subBefore(ip, ",", false).trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String resource(HttpServletRequest request, RateLimit rateLimit) {
+        if (rateLimit.resource().isEmpty()) {
+            return "";
+        }
+        Map<String, String> variables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        return variables == null ? "" : StrUtil.nullToEmpty(variables.get(rateLimit.resource()));
+    }
+
+    private static boolean reject(HttpServletResponse response) throws Exception {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后重试")));
+        return false;
+    }
+}
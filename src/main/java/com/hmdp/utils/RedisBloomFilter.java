@@ -0,0 +1,272 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于Redis位图的布隆过滤器：元素经过k次哈希映射到位图的k个位置，添加时全部置1，
+ * 查询时有一位为0就一定不存在。占用的内存只与预计元素数量和误判率有关。
+ * 本地保存一份位图镜像，本地判断可能存在时直接返回：添加元素时通过发布订阅通知其他实例同步，
+ * 并定时从Redis全量同步位图，补上丢失的通知。本地判断不存在时仍以Redis为准（通知可能丢失，
+ * 只信本地会误判新添加的元素不存在），Redis判断不存在的结果在本地短暂缓存，收到添加通知时清空
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> CONTAINS_SCRIPT;
+    /**
+     * 不存在缓存最多保存的元素数量
+     */
+    private static final int NEGATIVE_CACHE_SIZE = 10000;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom-add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        CONTAINS_SCRIPT = new DefaultRedisScript<>();
+        CONTAINS_SCRIPT.setLocation(new ClassPathResource("bloom-contains.lua"));
+        CONTAINS_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    /**
+     * 添加元素的通知频道，消息内容为逗号分隔的哈希位置
+     */
+    private final String channel;
+    /**
+     * 位图的位数
+     */
+    private final long numBits;
+    /**
+     * 哈希函数个数
+     */
+    private final int numHashes;
+    /**
+     * 本地位图镜像
+     */
+    private final AtomicLongArray localBits;
+    /**
+     * Redis判断不存在的元素，短暂缓存，避免同一个不存在的id反复查询Redis；为null时不缓存
+     */
+    private final LRUCache<String, Boolean> negativeCache;
+    private ScheduledExecutorService syncExecutor;
+
+    /**
+     * @param key 位图key
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望的误判率
+     * @param negativeCacheTtl Redis判断不存在的结果在本地缓存的时长，为0时不缓存
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                            String key, long expectedInsertions, double fpp, Duration negativeCacheTtl) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.channel = key + ":add";
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long n = Math.max(expectedInsertions, 1);
+        this.numBits = Math.max(64, (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.localBits = new AtomicLongArray((int) ((numBits + 63) / 64));
+        this.negativeCache = negativeCacheTtl.isZero() || negativeCacheTtl.isNegative()
+                ? null : CacheUtil.newLRUCache(NEGATIVE_CACHE_SIZE, negativeCacheTtl.toMillis());
+        // 其他实例添加的元素同步到本地镜像，新元素可能在不存在缓存中，清空缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            for (String offset : StrUtil.split(body, ',')) {
+                setLocal(Long.parseLong(offset));
+            }
+            clearNegativeCache();
+        }, new ChannelTopic(channel));
+    }
+
+    /**
+     * 添加元素，同时写入Redis和本地镜像，并通知其他实例
+     */
+    public void add(Object value) {
+        long[] offsets = offsets(value);
+        String[] args = toArgs(offsets);
+        stringRedisTemplate.execute(ADD_SCRIPT, Collections.singletonList(key), args);
+        setLocal(offsets);
+        clearNegativeCache();
+        stringRedisTemplate.convertAndSend(channel, String.join(",", args));
+    }
+
+    /**
+     * 批量添加元素，一次pipeline完成，用于启动时初始化
+     */
+    public void addAll(Collection<?> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Object value : values) {
+                long[] offsets = offsets(value);
+                for (long offset : offsets) {
+                    conn.setBit(key, offset, true);
+                }
+                setLocal(offsets);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 判断元素是否可能存在
+     * @return false 一定不存在；true 可能存在
+     */
+    public boolean mightContain(Object value) {
+        long[] offsets = offsets(value);
+        // 1.本地镜像判断可能存在，直接返回
+        if (containsLocal(offsets)) {
+            return true;
+        }
+        // 2.最近查询过Redis确认不存在，直接返回
+        String member = value.toString();
+        if (negativeCache != null && negativeCache.get(member, false) != null) {
+            return false;
+        }
+        // 3.本地判断不存在，可能是添加通知丢失，以Redis为准
+        Long result = stringRedisTemplate.execute(CONTAINS_SCRIPT, Collections.singletonList(key), toArgs(offsets));
+        if (result == null || result != 1L) {
+            if (negativeCache != null) {
+                negativeCache.put(member, Boolean.TRUE);
+            }
+            return false;
+        }
+        // 4.同步到本地
+        setLocal(offsets);
+        return true;
+    }
+
+    /**
+     * 从Redis全量同步位图到本地镜像，只会置1不会清0，让更多的判断在本地完成
+     */
+    public void sync() {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bitmap != null) {
+            // Redis位图中第i个字节的最高位是第i*8位
+            int words = localBits.length();
+            for (int w = 0; w < words; w++) {
+                long word = 0;
+                for (int b = 0; b < 8; b++) {
+                    int i = w * 8 + b;
+                    if (i >= bitmap.length) {
+                        break;
+                    }
+                    int bits = bitmap[i] & 0xFF;
+                    for (int j = 0; j < 8 && bits != 0; j++) {
+                        if ((bits & (0x80 >>> j)) != 0) {
+                            word |= 1L << (b * 8 + j);
+                        }
+                    }
+                }
+                if (word != 0) {
+                    long mask = word;
+                    localBits.accumulateAndGet(w, mask, (x, y) -> x | y);
+                }
+            }
+        }
+    }
+
+    /**
+     * 定时全量同步，补上丢失的添加通知（如订阅连接断开期间的消息）
+     * @param interval 同步间隔
+     */
+    public synchronized void scheduleSync(Duration interval) {
+        if (syncExecutor != null) {
+            return;
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor();
+        long millis = interval.toMillis();
+        syncExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (Exception e) {
+                log.error("同步布隆过滤器异常，key={}", key, e);
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 由Spring在销毁bean时调用
+     */
+    public synchronized void close() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 双重哈希 h1 + i * h2 计算k个位置，只需要一次128位MurmurHash
+     */
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private boolean containsLocal(long[] offsets) {
+        for (long offset : offsets) {
+            if ((localBits.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void clearNegativeCache() {
+        if (negativeCache != null) {
+            negativeCache.clear();
+        }
+    }
+
+    private void setLocal(long[] offsets) {
+        for (long offset : offsets) {
+            setLocal(offset);
+        }
+    }
+
+    private void setLocal(long offset) {
+        long mask = 1L << offset;
+        localBits.accumulateAndGet((int) (offset >>> 6), mask, (a, b) -> a | b);
+    }
+
+    private static String[] toArgs(long[] offsets) {
+        String[] args = new String[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        return args;
+    }
+}
@@ -10,11 +10,37 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "seckill:order:timeout:";
+    public static final String SECKILL_ROOM_KEY = "seckill:room:";
+    public static final String SECKILL_ROOM_VOUCHERS_KEY = "seckill:room:vouchers";
+    public static final String LOCK_SECKILL_ROOM_KEY = "lock:seckill:room";
+    public static final String SECKILL_STREAM_KEY = "stream.orders:";
+    public static final String SECKILL_STREAM_DLQ_KEY = "stream.orders.dlq:";
+    public static final String SECKILL_STREAM_OWNER_KEY = "seckill:stream:owner:";
+    public static final String SECKILL_STREAM_CONSUMERS_KEY = "seckill:stream:consumers";
+    public static final String SECKILL_STREAM_ARCHIVED_KEY = "seckill:stream:archived";
+    public static final String LOCK_SECKILL_STREAM_TRIM_KEY = "lock:seckill:stream:trim";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_READY_KEY = "seckill:ready:";
+    public static final String LOCK_SECKILL_PREHEAT_KEY = "lock:seckill:preheat";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_SCHEDULE_CHANNEL = "seckill:schedule";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_SOLD_OUT_CLEAR_CHANNEL = "seckill:sold-out:clear";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String RATE_LIMIT_KEY = "limit:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
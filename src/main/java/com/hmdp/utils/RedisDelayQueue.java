@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基于sorted set的延时队列：member为任务，score为到期时间戳（毫秒）。
+ * 取任务只读取score最小的一段，复杂度 O(log N + limit)，与队列中的任务总数无关；
+ * 取出的任务先推迟到期时间而不是删除，处理完成后再删除，保证至少处理一次
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Component
+public class RedisDelayQueue {
+
+    private static final DefaultRedisScript<List> POLL_SCRIPT;
+
+    static {
+        POLL_SCRIPT = new DefaultRedisScript<>();
+        POLL_SCRIPT.setLocation(new ClassPathResource("delay-queue-poll.lua"));
+        POLL_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisDelayQueue(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 添加任务，已经存在的任务保持原来的到期时间（ZADD NX），重复添加不会推迟
+     * @param queueKey 延时队列key
+     * @param members 任务
+     * @param deliverAt 到期时间戳（毫秒）
+     */
+    public void offer(String queueKey, Collection<String> members, long deliverAt) {
+        if (members.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String member : members) {
+                conn.zAdd(queueKey, deliverAt, member, RedisZSetCommands.ZAddArgs.ifNotExists());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 取出到期的任务
+     * @param queueKey 延时队列key
+     * @param now 当前时间戳（毫秒）
+     * @param limit 最多取出的条数
+     * @param retryAt 没有调用remove时重新到期的时间戳（毫秒）
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> poll(String queueKey, long now, int limit, long retryAt) {
+        List<String> members = stringRedisTemplate.execute(POLL_SCRIPT, Collections.singletonList(queueKey),
+                String.valueOf(now), String.valueOf(limit), String.valueOf(retryAt));
+        return members == null ? Collections.emptyList() : members;
+    }
+
+    /**
+     * 任务处理完成或取消后删除
+     */
+    public void remove(String queueKey, String member) {
+        stringRedisTemplate.opsForZSet().remove(queueKey, member);
+    }
+}
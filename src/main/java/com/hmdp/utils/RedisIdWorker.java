@@ -1,18 +1,37 @@
 package com.hmdp.utils;
 
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     private StringRedisTemplate stringRedisTemplate;
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    private IdWorkerProperties idWorkerProperties;
+    private SnowflakeIdWorker snowflakeIdWorker;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                         IdWorkerProperties idWorkerProperties, SnowflakeIdWorker snowflakeIdWorker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
+        this.snowflakeIdWorker = snowflakeIdWorker;
     }
 
     /**
@@ -23,8 +42,23 @@ public class RedisIdWorker {
      * 序列号位数
      */
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 号段模式下每个业务前缀的号段缓冲
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
 
     public long nextId(String keyPrefix){
+        String mode = idWorkerProperties.modeOf(keyPrefix);
+        if ("snowflake".equals(mode)) {
+            return snowflakeIdWorker.nextId();
+        }
+        if ("segment".equals(mode)) {
+            return nextIdBySegment(keyPrefix);
+        }
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -32,10 +66,125 @@ public class RedisIdWorker {
 
         //2.生成序列号
         //2.1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         //2.2自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         //3.拼接并返回
         return timestamp<<COUNT_BITS | count;
     }
+
+    /**
+     * 非阻塞生成ID：redis模式用Lettuce异步执行INCR，号段和雪花模式本身在本地生成，直接返回
+     */
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        String mode = idWorkerProperties.modeOf(keyPrefix);
+        if ("snowflake".equals(mode) || "segment".equals(mode)) {
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        //1.生成时间戳
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        //2.异步自增长，拼接并返回
+        return reactiveStringRedisTemplate.opsForValue()
+                .increment("icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER))
+                .map(count -> timestamp << COUNT_BITS | count)
+                .toFuture();
+    }
+
+    /**
+     * 号段模式：序列号从本地号段中分配，号段用完前异步预取下一段，只有切换号段时才可能访问Redis。
+     * 号段与日期绑定，跨天后丢弃旧号段，保证 (时间戳, 序列号) 在所有实例间唯一
+     */
+    private long nextIdBySegment(String keyPrefix) {
+        //1.生成时间戳，与redis模式保持一致
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        //2.从号段中取序列号
+        long count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new)
+                .next(Math.floorDiv(nowSecond, SECONDS_PER_DAY));
+        //3.拼接并返回
+        return timestamp<<COUNT_BITS | count;
+    }
+
+    private Segment loadSegment(String keyPrefix, long day) {
+        int step = idWorkerProperties.getSegmentStep();
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        // INCRBY 一次预留 step 个序列号，号段为 (max - step, max]
+        Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        long start = max - step + 1;
+        return new Segment(day, start, max, start + (long) (step * idWorkerProperties.getSegmentPrefetchRatio()));
+    }
+
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+
+        private Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.end) {
+                        if (value == segment.prefetchAt) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment used, long day) {
+            if (current != used) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            // 预取的号段必须是同一天且比当前号段更大，保证本实例内ID单调递增
+            boolean usable = prefetched != null && prefetched.day == day
+                    && (used == null || prefetched.end > used.end);
+            current = usable ? prefetched : loadSegment(keyPrefix, day);
+        }
+
+        private void prefetch(long day) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            SEGMENT_PREFETCH_EXECUTOR.execute(() -> {
+                try {
+                    Segment segment = loadSegment(keyPrefix, day);
+                    synchronized (this) {
+                        next = segment;
+                    }
+                } catch (Exception e) {
+                    // 预取失败，号段用完时会同步加载
+                    log.error("预取号段失败，keyPrefix={}", keyPrefix, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RateLimitProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 基于Redis令牌桶的限流器，所有实例共享同一个桶。
+ * 按用户、按IP的桶在访问Redis前先经过本地同参数的令牌桶预过滤：单个实例上已经超过限额的请求，
+ * 在所有实例合计时必然也超过限额，直接在JVM内拒绝，不再访问Redis。
+ * 热点资源的全局桶可以拆成多个Redis key，每个分片分得总速率和容量的一部分，请求随机落到其中一个分片
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class RedisRateLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("rate-limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Map<String, LocalBucket> localBuckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweepExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public RedisRateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        sweepExecutor.scheduleWithFixedDelay(this::sweep, 10, 10, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        sweepExecutor.shutdownNow();
+    }
+
+    /**
+     * 尝试从令牌桶中取一个令牌
+     * @param key 桶名称
+     * @param limit 限流参数，未开启时直接放行
+     * @param localFirst 是否先经过本地预过滤
+     * @return true代表放行; false代表被限流
+     */
+    public boolean tryAcquire(String key, RateLimitProperties.Limit limit, boolean localFirst) {
+        if (!limit.isEnabled()) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        // 1.本地预过滤
+        if (localFirst && !localBuckets.computeIfAbsent(key, k -> new LocalBucket(limit.getRate(), limit.getBurst(), now))
+                .tryAcquire(now)) {
+            return false;
+        }
+        // 2.Redis令牌桶，拆分时随机选一个分片，分片的速率和容量按分片数均分
+        String redisKey = RATE_LIMIT_KEY + key;
+        double rate = limit.getRate();
+        int burst = limit.getBurst();
+        int shards = limit.getShards();
+        if (shards > 1) {
+            redisKey = redisKey + ":" + ThreadLocalRandom.current().nextInt(shards);
+            rate = rate / shards;
+            burst = Math.max(burst / shards, 1);
+        }
+        try {
+            Long allowed = stringRedisTemplate.execute(
+                    LIMIT_SCRIPT,
+                    Collections.singletonList(redisKey),
+                    String.valueOf(rate), String.valueOf(burst));
+            return allowed == null || allowed == 1L;
+        } catch (Exception e) {
+            // 限流只是保护措施，Redis异常时放行，由后续的业务校验兜底
+            log.error("限流异常，key={}", key, e);
+            return true;
+        }
+    }
+
+    /**
+     * 清理已经补满的本地桶，补满的桶和新建的桶等价；没补满的桶删除后会重新装满，相当于多放行了请求，必须保留
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        localBuckets.entrySet().removeIf(entry -> entry.getValue().isFull(now));
+    }
+
+    private static class LocalBucket {
+        private final double rate;
+        private final int burst;
+        private double tokens;
+        private long lastRefill;
+
+        private LocalBucket(double rate, int burst, long now) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        /**
+         * 按经过的时间补充令牌后是否已经装满，长时间没有访问的桶也会因此被清理
+         */
+        private synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000);
+                lastRefill = now;
+            }
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -4,8 +4,11 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
@@ -14,7 +17,14 @@ import java.util.concurrent.TimeUnit;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
+
+    /**
+     * 浏览器的EventSource不能设置请求头，只有这些SSE接口允许通过查询参数token传递登录凭证
+     */
+    private static final String[] QUERY_TOKEN_PATHS = {"/voucher-order/*/status/stream"};
+
+    private static final PathMatcher PATH_MATCHER = new AntPathMatcher();
 
     /*
     因为这个类RefreshTokenInterceptor对象是我们自己在需要使用到它的时候手动New出来的，
@@ -30,8 +40,16 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求完成后的再次分发，token已经在第一次分发时校验过
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
         //获取请求头中的token,根据前端代码中定义的变量名来取
         String token = request.getHeader("authorization");
+        //SSE接口的EventSource无法携带请求头，从查询参数中取
+        if (StrUtil.isBlank(token) && isQueryTokenPath(request)) {
+            token = request.getParameter("token");
+        }
         //判断token是否为空
         if (StrUtil.isBlank(token)) {
 
@@ -55,9 +73,25 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         return true;
     }
 
+    private static boolean isQueryTokenPath(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String pattern : QUERY_TOKEN_PATHS) {
+            if (PATH_MATCHER.match(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         //移除用户
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步请求不会在当前线程执行afterCompletion，请求线程归还前移除用户
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,166 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀key布局：优惠券（分段模式下是优惠券的每个分段）按id映射到一个分区p，
+ * 库存、一人一单集合、时间窗口和订单stream都带上hash tag {p}，
+ * 保证一次lua脚本访问的key在Redis Cluster中属于同一个slot，不同分区分散到不同slot
+ * <pre>
+ * seckill:stock:{p}:voucherId[:segments:segment]
+ * seckill:order:{p}:voucherId[:segments:segment]
+ * seckill:window:{p}:voucherId
+ * stream.orders:{p}
+ * stream.orders.dlq:{p}
+ * seckill:order:timeout:{p}
+ * </pre>
+ * 分段的key带上分段数，分段数变化后是一套新的key，还在使用旧分段数的实例访问不到新的库存，
+ * 不会把同一个用户路由到另一个去重集合中。
+ * 分区数为1时所有key都落在{0}这一个slot上，Redis Cluster部署时必须把hmdp.seckill.partitions调大
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Component
+public class SeckillKeys {
+
+    private final SeckillProperties seckillProperties;
+    private final RedisProperties redisProperties;
+
+    public SeckillKeys(SeckillProperties seckillProperties, RedisProperties redisProperties) {
+        this.seckillProperties = seckillProperties;
+        this.redisProperties = redisProperties;
+    }
+
+    /**
+     * 集群部署时校验分区配置：只有一个分区时所有秒杀key挤在同一个slot，集群无法分摊压力；
+     * 按用户分区时订单stream与库存key不在同一slot，脚本会报CROSSSLOT错误
+     */
+    @PostConstruct
+    private void validate() {
+        if (redisProperties.getCluster() == null || redisProperties.getCluster().getNodes() == null
+                || redisProperties.getCluster().getNodes().isEmpty()) {
+            return;
+        }
+        if (seckillProperties.getPartitions() <= 1) {
+            throw new IllegalStateException("Redis Cluster部署时hmdp.seckill.partitions必须大于1，当前为"
+                    + seckillProperties.getPartitions());
+        }
+        if ("user".equals(seckillProperties.getOrder().getPartitionBy())) {
+            throw new IllegalStateException("Redis Cluster部署时不支持hmdp.seckill.order.partition-by=user");
+        }
+    }
+
+    public int partitions() {
+        return Math.max(seckillProperties.getPartitions(), 1);
+    }
+
+    /**
+     * 未分段的优惠券所在分区
+     */
+    public int partitionOf(Long voucherId) {
+        return (int) Math.floorMod(voucherId, (long) partitions());
+    }
+
+    /**
+     * 分段的优惠券每个分段所在分区，相邻分段落在相邻分区，分散到不同slot
+     */
+    public int partitionOf(Long voucherId, int segment) {
+        return (int) Math.floorMod(voucherId + segment, (long) partitions());
+    }
+
+    /**
+     * 优惠券用到的所有分区
+     */
+    public Set<Integer> partitionsOf(Long voucherId, int segments) {
+        if (segments <= 1) {
+            return Collections.singleton(partitionOf(voucherId));
+        }
+        Set<Integer> result = new LinkedHashSet<>();
+        for (int i = 0; i < segments; i++) {
+            result.add(partitionOf(voucherId, i));
+        }
+        return result;
+    }
+
+    public String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + tag(partitionOf(voucherId)) + ":" + voucherId;
+    }
+
+    /**
+     * @param segments 分段数
+     * @param segment 分段
+     */
+    public String stockKey(Long voucherId, int segments, int segment) {
+        return SECKILL_STOCK_KEY + tag(partitionOf(voucherId, segment)) + ":" + voucherId + ":" + segments + ":" + segment;
+    }
+
+    public String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + tag(partitionOf(voucherId)) + ":" + voucherId;
+    }
+
+    public String orderKey(Long voucherId, int segments, int segment) {
+        return SECKILL_ORDER_KEY + tag(partitionOf(voucherId, segment)) + ":" + voucherId + ":" + segments + ":" + segment;
+    }
+
+    /**
+     * 时间窗口在优惠券用到的每个分区都保存一份，供同一slot内的脚本校验
+     */
+    public String windowKey(Long voucherId, int partition) {
+        return SECKILL_WINDOW_KEY + tag(partition) + ":" + voucherId;
+    }
+
+    /**
+     * 等候室，与优惠券的其他key在同一分区
+     */
+    public String roomKey(Long voucherId) {
+        return SECKILL_ROOM_KEY + tag(partitionOf(voucherId)) + ":" + voucherId;
+    }
+
+    public String streamKey(int partition) {
+        return SECKILL_STREAM_KEY + tag(partition);
+    }
+
+    /**
+     * 分区的死信队列，与订单stream带有相同的hash tag
+     */
+    public String deadLetterKey(int partition) {
+        return SECKILL_STREAM_DLQ_KEY + tag(partition);
+    }
+
+    /**
+     * 订单消息写入的stream：默认与库存key在同一分区；按用户分区时由userId决定分区，同一用户的订单保持顺序
+     * @param partition 库存key所在的分区
+     * @param userId 用户id
+     */
+    public String orderStreamKey(int partition, Long userId) {
+        if ("user".equals(seckillProperties.getOrder().getPartitionBy())) {
+            return streamKey(Math.floorMod(userId.hashCode(), partitions()));
+        }
+        return streamKey(partition);
+    }
+
+    /**
+     * 未支付订单的超时延时队列，按订单id分区
+     */
+    public String orderTimeoutKey(Long orderId) {
+        return orderTimeoutKey((int) Math.floorMod(orderId, (long) partitions()));
+    }
+
+    public String orderTimeoutKey(int partition) {
+        return SECKILL_ORDER_TIMEOUT_KEY + tag(partition);
+    }
+
+    private static String tag(int partition) {
+        return "{" + partition + "}";
+    }
+}
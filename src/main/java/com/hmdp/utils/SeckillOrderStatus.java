@@ -0,0 +1,249 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单状态：下单成功后记为queued，订单落库后记为persisted，确定无法创建时记为failed，
+ * 每个订单一个带有效期的hash：status 状态，userId 下单用户，watchers 等待中的SSE连接数，
+ * 查询状态只需要一次HMGET，并且只能查询自己的订单。
+ * 有SSE连接等待时，最终状态才通过Redis发布订阅广播，推送给在任意实例上等待的连接
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    public static final String QUEUED = "queued";
+    public static final String PERSISTED = "persisted";
+    public static final String FAILED = "failed";
+
+    private static final String STATUS_FIELD = "status";
+    private static final String USER_FIELD = "userId";
+
+    private static final DefaultRedisScript<Long> QUEUED_SCRIPT;
+    private static final DefaultRedisScript<Long> FINAL_SCRIPT;
+    private static final DefaultRedisScript<Long> WATCH_SCRIPT;
+
+    static {
+        QUEUED_SCRIPT = new DefaultRedisScript<>();
+        QUEUED_SCRIPT.setLocation(new ClassPathResource("order-status-queued.lua"));
+        QUEUED_SCRIPT.setResultType(Long.class);
+        FINAL_SCRIPT = new DefaultRedisScript<>();
+        FINAL_SCRIPT.setLocation(new ClassPathResource("order-status-final.lua"));
+        FINAL_SCRIPT.setResultType(Long.class);
+        WATCH_SCRIPT = new DefaultRedisScript<>();
+        WATCH_SCRIPT.setLocation(new ClassPathResource("order-status-watch.lua"));
+        WATCH_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final SeckillProperties seckillProperties;
+
+    /**
+     * 本实例上等待最终状态的SSE连接
+     */
+    private final Map<Long, List<SseEmitter>> emitters = new ConcurrentHashMap<>();
+
+    public SeckillOrderStatus(StringRedisTemplate stringRedisTemplate, ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                              RedisMessageListenerContainer listenerContainer, SeckillProperties seckillProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.seckillProperties = seckillProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 消息格式 orderId:status
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] arr = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            notifyEmitters(Long.valueOf(arr[0]), arr[1]);
+        }, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 记录订单已进入队列和下单用户。异步写入不增加下单耗时，使用HSETNX避免覆盖已经写入的最终状态
+     * @param orderId 订单id
+     * @param userId 下单用户id
+     */
+    public void markQueued(Long orderId, Long userId) {
+        reactiveStringRedisTemplate.execute(QUEUED_SCRIPT, Collections.singletonList(SECKILL_ORDER_STATUS_KEY + orderId),
+                        Arrays.asList(userId.toString(), String.valueOf(seckillProperties.getOrder().getStatusTtl().getSeconds())))
+                .subscribe(null, e -> log.error("写入订单状态异常，orderId={}", orderId, e));
+    }
+
+    /**
+     * 重新进入队列（如死信重放），覆盖之前的状态
+     * @param orderId 订单id
+     * @param userId 下单用户id
+     */
+    public void requeue(Long orderId, Long userId) {
+        String key = SECKILL_ORDER_STATUS_KEY + orderId;
+        Map<String, String> value = new HashMap<>(2);
+        value.put(STATUS_FIELD, QUEUED);
+        value.put(USER_FIELD, userId.toString());
+        stringRedisTemplate.opsForHash().putAll(key, value);
+        stringRedisTemplate.expire(key, seckillProperties.getOrder().getStatusTtl());
+    }
+
+    public void markPersisted(Long orderId) {
+        markFinal(Collections.singletonList(orderId), PERSISTED);
+    }
+
+    public void markFailed(Long orderId) {
+        markFinal(Collections.singletonList(orderId), FAILED);
+    }
+
+    /**
+     * 批量写入最终状态，有SSE连接等待的订单同时广播，一次pipeline完成
+     * @param orderIds 订单id
+     * @param status PERSISTED 或 FAILED
+     */
+    public void markFinal(Collection<Long> orderIds, String status) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        String ttl = String.valueOf(seckillProperties.getOrder().getStatusTtl().getSeconds());
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long orderId : orderIds) {
+                    // 每个订单的key不在同一个slot，逐个执行脚本
+                    conn.eval(FINAL_SCRIPT.getScriptAsString(), ReturnType.INTEGER, 1,
+                            SECKILL_ORDER_STATUS_KEY + orderId, status, ttl,
+                            SECKILL_ORDER_STATUS_CHANNEL, orderId + ":" + status);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 状态只用于查询，写入失败不影响订单本身
+            log.error("写入订单状态异常，status={}, orders={}", status, orderIds.size(), e);
+        }
+    }
+
+    /**
+     * 查询订单状态
+     * @param orderId 订单id
+     * @param userId 当前用户id
+     * @return 订单状态，不存在、已过期或不是该用户的订单时返回null
+     */
+    public String get(Long orderId, Long userId) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_ORDER_STATUS_KEY + orderId,
+                Arrays.asList(STATUS_FIELD, USER_FIELD));
+        if (values == null || values.get(0) == null || !userId.toString().equals(values.get(1))) {
+            return null;
+        }
+        return values.get(0).toString();
+    }
+
+    /**
+     * 订阅订单的最终状态：先推送当前状态，订单落库或失败时推送最终状态并结束连接
+     * @param orderId 订单id
+     * @param userId 当前用户id
+     * @return SSE连接，订单不存在、已过期或不是该用户的订单时返回null
+     */
+    public SseEmitter subscribe(Long orderId, Long userId) {
+        String status = get(orderId, userId);
+        if (status == null) {
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(seckillProperties.getOrder().getStatusSseTimeout().toMillis());
+        if (isFinal(status)) {
+            sendAndComplete(emitter, status);
+            return emitter;
+        }
+        // 1.注册连接，并记录等待的连接数，最终状态只在有连接等待时广播；超时或结束时移除
+        String key = SECKILL_ORDER_STATUS_KEY + orderId;
+        List<SseEmitter> list = emitters.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>());
+        list.add(emitter);
+        emitter.onCompletion(() -> {
+            removeEmitter(orderId, emitter);
+            unwatch(key);
+        });
+        emitter.onTimeout(emitter::complete);
+        stringRedisTemplate.execute(WATCH_SCRIPT, Collections.singletonList(key), "1");
+        // 2.推送当前状态
+        try {
+            emitter.send(SseEmitter.event().name("status").data(status));
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+            return emitter;
+        }
+        // 3.记录连接数后再查询一次，避免错过记录之前写入的最终状态
+        status = get(orderId, userId);
+        if (isFinal(status)) {
+            notifyEmitters(orderId, status);
+        }
+        return emitter;
+    }
+
+    private void unwatch(String key) {
+        try {
+            stringRedisTemplate.execute(WATCH_SCRIPT, Collections.singletonList(key), "-1");
+        } catch (Exception e) {
+            // 连接数偏大只会多广播几次，状态过期后一起删除
+            log.error("减少订单状态连接数异常，key={}", key, e);
+        }
+    }
+
+    private void notifyEmitters(Long orderId, String status) {
+        List<SseEmitter> list = emitters.remove(orderId);
+        if (list == null) {
+            return;
+        }
+        for (SseEmitter emitter : list) {
+            sendAndComplete(emitter, status);
+        }
+    }
+
+    private void removeEmitter(Long orderId, SseEmitter emitter) {
+        emitters.computeIfPresent(orderId, (id, list) -> {
+            list.remove(emitter);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private static void sendAndComplete(SseEmitter emitter, String status) {
+        try {
+            emitter.send(SseEmitter.event().name("status").data(status));
+            emitter.complete();
+        } catch (Exception e) {
+            emitter.completeWithError(e);
+        }
+    }
+
+    private static boolean isFinal(String status) {
+        return PERSISTED.equals(status) || FAILED.equals(status);
+    }
+}
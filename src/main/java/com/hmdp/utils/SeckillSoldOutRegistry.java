@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CLEAR_CHANNEL;
+
+/**
+ * 本地售罄标记：优惠券第一次返回库存不足后在本地记录，并通过Redis发布订阅通知其他实例，
+ * 之后的请求直接在JVM内拒绝，不再访问Redis。补充库存时清除标记
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                soldOut.add(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        listenerContainer.addMessageListener((message, pattern) ->
+                soldOut.remove(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CLEAR_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄，只在本地第一次标记时广播
+     * @param voucherId 优惠券id
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            publish(SECKILL_SOLD_OUT_CHANNEL, voucherId);
+        }
+    }
+
+    /**
+     * 只在本实例标记售罄，不广播。本地配额模式下其他实例可能还持有没用完的配额，
+     * 各实例在自己的配额和Redis库存都用完时各自标记
+     * @param voucherId 优惠券id
+     */
+    public void markSoldOutLocally(Long voucherId) {
+        soldOut.add(voucherId);
+    }
+
+    /**
+     * 清除售罄标记并广播，补充库存后调用
+     * @param voucherId 优惠券id
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish(SECKILL_SOLD_OUT_CLEAR_CHANNEL, voucherId);
+    }
+
+    private void publish(String channel, Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(channel, voucherId.toString());
+        } catch (Exception e) {
+            // 广播失败不影响本地判断，其他实例最多多执行几次脚本
+            log.error("广播售罄状态失败，voucherId={}", voucherId, e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地库存配额：每个实例一次从Redis租借一批库存（DECRBY），之后在JVM内用原子计数扣减，
+ * 大部分请求的库存判断不再需要访问Redis。没用完的配额在租约过期或应用关闭时归还Redis
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillStockQuota {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private final SeckillKeys seckillKeys;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock-lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService leaseExpireExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillStockQuota(StringRedisTemplate stringRedisTemplate, SeckillProperties seckillProperties,
+                             SeckillSoldOutRegistry seckillSoldOutRegistry, SeckillKeys seckillKeys) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+        this.seckillKeys = seckillKeys;
+    }
+
+    @PostConstruct
+    private void init() {
+        leaseExpireExecutor.scheduleWithFixedDelay(this::returnExpired, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        leaseExpireExecutor.shutdownNow();
+        // 应用关闭，归还所有没用完的配额
+        leases.keySet().forEach(this::giveBack);
+    }
+
+    /**
+     * 尝试从本地配额中扣减一个库存，本地配额用完时再向Redis租借一批
+     * @param voucherId 优惠券id
+     * @return 0代表扣减成功; 1代表库存不足; SeckillVoucherSchedule.NOT_PREHEATED代表库存还没有预热到Redis
+     */
+    public int tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        if (lease.tryDecrement()) {
+            return 0;
+        }
+        synchronized (lease) {
+            // 双重检查，其他线程可能已经租到了新的配额
+            if (lease.tryDecrement()) {
+                return 0;
+            }
+            Long leased = stringRedisTemplate.execute(
+                    LEASE_SCRIPT,
+                    Collections.singletonList(seckillKeys.stockKey(voucherId)),
+                    String.valueOf(seckillProperties.getStock().getQuotaChunk()));
+            if (leased == null) {
+                return 1;
+            }
+            if (leased < 0) {
+                // 库存key不存在，还没有预热，不能当作售罄
+                return SeckillVoucherSchedule.NOT_PREHEATED;
+            }
+            if (leased == 0) {
+                return 1;
+            }
+            lease.leasedAt = System.currentTimeMillis();
+            // 自己先占一个，剩下的放入本地配额
+            lease.remaining.addAndGet(leased.intValue() - 1);
+            return 0;
+        }
+    }
+
+    /**
+     * 归还一个库存到本地配额，用于库存扣减成功但后续校验失败（如重复下单）的情况
+     * @param voucherId 优惠券id
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    private void returnExpired() {
+        long expireBefore = System.currentTimeMillis() - seckillProperties.getStock().getQuotaLeaseTtl().toMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.leasedAt < expireBefore) {
+                giveBack(voucherId);
+            }
+        });
+    }
+
+    private void giveBack(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            return;
+        }
+        int remaining = lease.remaining.getAndSet(0);
+        if (remaining <= 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId), remaining);
+            log.debug("归还本地库存配额，voucherId={}, stock={}", voucherId, remaining);
+            // 其他实例可能已经因为租不到库存标记了售罄，归还后清除标记
+            seckillSoldOutRegistry.clear(voucherId);
+        } catch (Exception e) {
+            // 归还失败，配额放回本地，下次再归还
+            lease.remaining.addAndGet(remaining);
+            log.error("归还本地库存配额异常，voucherId={}", voucherId, e);
+        }
+    }
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long leasedAt;
+
+        private boolean tryDecrement() {
+            int current;
+            do {
+                current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!remaining.compareAndSet(current, current - 1));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据库库存聚合扣减：Redis已经保证不会超卖，数据库库存只需要最终一致。
+ * 订单落库时只在本地按优惠券累计扣减数量，定时或累计达到批量大小时一次执行
+ * update tb_seckill_voucher set stock = stock - k，热门优惠券的库存行不再被每个订单加锁。
+ * 实例宕机时未刷新的扣减会丢失，数据库库存偏大，但不影响Redis中的库存判断。
+ * 扣减带有 stock >= k 的条件，数据库库存不足时只扣减到0并记录差额，不会一直重试；
+ * 数据库异常时扣减保留在本地等下次重试。
+ * 预热会先刷新该优惠券的扣减，仍有未写入的扣减时不用数据库库存初始化Redis，避免超卖
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillStockWriteBehind {
+
+    private final ISeckillVoucherService seckillVoucherService;
+    private final SeckillProperties seckillProperties;
+
+    /**
+     * 每个优惠券尚未刷新到数据库的扣减数量
+     */
+    private final Map<Long, AtomicLong> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillStockWriteBehind(ISeckillVoucherService seckillVoucherService, SeckillProperties seckillProperties) {
+        this.seckillVoucherService = seckillVoucherService;
+        this.seckillProperties = seckillProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        long interval = seckillProperties.getStock().getWriteBehindInterval().toMillis();
+        flushExecutor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdownNow();
+        // 停止前把剩余的扣减写入数据库
+        flush();
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.getStock().isWriteBehindEnabled();
+    }
+
+    /**
+     * 记录库存扣减。在事务中调用时，事务提交后才计入，回滚的订单不会扣减库存
+     * @param voucherId 优惠券id
+     * @param n 扣减数量
+     */
+    public void deduct(Long voucherId, int n) {
+        if (n <= 0) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            add(voucherId, n);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                add(voucherId, n);
+            }
+        });
+    }
+
+    private void add(Long voucherId, int n) {
+        long total = pending.computeIfAbsent(voucherId, id -> new AtomicLong()).addAndGet(n);
+        // 累计达到批量大小，提前刷新，同一时刻最多提交一次
+        if (total >= seckillProperties.getStock().getWriteBehindBatchSize() && flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.execute(this::flush);
+        }
+    }
+
+    /**
+     * 立即把某个优惠券累计的扣减写入数据库
+     * @param voucherId 优惠券id
+     * @return true代表没有未写入的扣减，数据库库存是准确的
+     */
+    public boolean flush(Long voucherId) {
+        AtomicLong delta = pending.get(voucherId);
+        if (delta == null) {
+            return true;
+        }
+        flush(voucherId, delta);
+        return delta.get() <= 0;
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        for (Map.Entry<Long, AtomicLong> entry : pending.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void flush(Long voucherId, AtomicLong delta) {
+        // 1.取出累计的扣减数量并清零，刷新期间新的扣减继续累计
+        long k = delta.getAndSet(0);
+        if (k <= 0) {
+            return;
+        }
+        boolean success = false;
+        try {
+            // 2.update tb_seckill_voucher set stock = stock - k where voucher_id = ? and stock >= k
+            success = deductStock(voucherId, k) || deductRemaining(voucherId, k);
+        } catch (Exception e) {
+            log.error("聚合扣减库存异常，voucherId={}, k={}", voucherId, k, e);
+        }
+        if (!success) {
+            // 3.写入失败，放回去等下次刷新，不能丢弃，否则数据库库存偏大
+            delta.addAndGet(k);
+        }
+    }
+
+    /**
+     * 数据库库存不足k时（例如后台修改过库存），只扣减剩余的库存并记录差额，
+     * 否则 stock >= k 永远不成立，扣减会一直重试，预热也会一直被跳过
+     * @return true代表扣减已经处理完，不需要再重试
+     */
+    private boolean deductRemaining(Long voucherId, long k) {
+        // 1.查询当前库存，秒杀券已经被删除时丢弃扣减
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null || voucher.getStock() == null) {
+            log.error("聚合扣减库存失败，秒杀券不存在，丢弃扣减，voucherId={}, k={}", voucherId, k);
+            return true;
+        }
+        // 2.只扣减 min(k, stock)，库存在此期间又被修改时下次重试
+        long m = Math.min(k, Math.max(voucher.getStock(), 0));
+        if (m > 0 && !deductStock(voucherId, m)) {
+            return false;
+        }
+        // 3.记录没有扣减的差额，需要人工核对库存
+        log.error("聚合扣减库存不足，只扣减了剩余库存，voucherId={}, k={}, deducted={}, remainder={}",
+                voucherId, k, m, k - m);
+        return true;
+    }
+
+    private boolean deductStock(Long voucherId, long k) {
+        return seckillVoucherService.update()
+                .setSql("stock = stock - " + k)
+                .eq("voucher_id", voucherId)
+                .ge("stock", k)
+                .update();
+    }
+}
@@ -0,0 +1,214 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_STREAM_TRIM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_ARCHIVED_KEY;
+
+/**
+ * 订单stream裁剪：定时计算所有消费者组都已确认的位置，用 XTRIM MINID ~ 删除之前的消息，
+ * 未确认（pending）和未投递的消息不会被删除。开启归档时先把要删除的消息追加写入本地gzip文件
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillStreamTrimmer {
+
+    private static final DateTimeFormatter ARCHIVE_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillKeys seckillKeys;
+    private final RedissonClient redissonClient;
+
+    private final ScheduledExecutorService trimExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillStreamTrimmer(StringRedisTemplate stringRedisTemplate, SeckillProperties seckillProperties,
+                                SeckillKeys seckillKeys, RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillKeys = seckillKeys;
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Trim config = seckillProperties.getTrim();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long interval = config.getInterval().toMillis();
+        trimExecutor.scheduleWithFixedDelay(this::trimAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        trimExecutor.shutdownNow();
+    }
+
+    private void trimAll() {
+        // 多个实例只需要一个执行裁剪，避免重复归档
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_STREAM_TRIM_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            for (int p = 0; p < seckillKeys.partitions(); p++) {
+                String streamKey = seckillKeys.streamKey(p);
+                try {
+                    trim(streamKey, p);
+                } catch (Exception e) {
+                    log.error("裁剪订单stream异常，stream={}", streamKey, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void trim(String streamKey, int partition) {
+        // 1.计算可以安全删除的位置
+        RecordId minId = ackedBefore(streamKey);
+        if (minId == null) {
+            return;
+        }
+        // 2.归档将要删除的消息
+        if (seckillProperties.getTrim().isArchiveEnabled()) {
+            archive(streamKey, partition, minId);
+        }
+        // 3.XTRIM streamKey MINID ~ minId，近似裁剪只删除整个宏节点，开销很小
+        Long trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("XTRIM",
+                streamKey.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), minId.getValue().getBytes(StandardCharsets.UTF_8)));
+        if (trimmed != null && trimmed > 0) {
+            log.debug("裁剪订单stream，stream={}, minId={}, trimmed={}", streamKey, minId, trimmed);
+        }
+    }
+
+    /**
+     * 所有消费者组都已确认的位置：每个组取 pending-list中最小的id，没有pending时取last-delivered-id的下一个id，
+     * 再在所有组中取最小值。小于该位置的消息都已经投递并确认
+     * @return 可以安全删除的位置，stream没有消费者组或还没有投递过消息时返回null
+     */
+    private RecordId ackedBefore(String streamKey) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return null;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        if (groups.isEmpty()) {
+            return null;
+        }
+        RecordId min = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            RecordId candidate;
+            if (group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, group.groupName());
+                candidate = summary.minRecordId();
+            } else {
+                candidate = next(RecordId.of(group.lastDeliveredId()));
+            }
+            if (min == null || compare(candidate, min) < 0) {
+                min = candidate;
+            }
+        }
+        return min == null || min.getTimestamp() == 0 ? null : min;
+    }
+
+    /**
+     * 把小于minId的消息追加写入 archiveDir/orders-p分区-日期.jsonl.gz，每行一条消息。
+     * 每次追加都是一个独立的gzip成员，zcat和GZIPInputStream都可以连续读取。
+     * 已归档的位置记录在Redis中，近似裁剪保留下来的消息不会重复归档；
+     * 写完文件后记录位置前宕机会导致少量重复，读取归档时按streamId去重即可
+     */
+    private void archive(String streamKey, int partition, RecordId minId) {
+        SeckillProperties.Trim config = seckillProperties.getTrim();
+        // 1.从上次归档的位置之后开始读取
+        Object archivedId = stringRedisTemplate.opsForHash().get(SECKILL_STREAM_ARCHIVED_KEY, String.valueOf(partition));
+        Range<String> range = archivedId == null ? Range.unbounded()
+                : Range.rightUnbounded(Range.Bound.inclusive(next(RecordId.of(archivedId.toString())).getValue()));
+        File file = FileUtil.file(config.getArchiveDir(),
+                "orders-p" + partition + "-" + LocalDate.now().format(ARCHIVE_DATE_FORMATTER) + ".jsonl.gz");
+        FileUtil.mkParentDirs(file);
+        RecordId last = null;
+        int archived = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(file, true)), StandardCharsets.UTF_8))) {
+            boolean done = false;
+            while (!done) {
+                // 2.分页读取 XRANGE streamKey start + COUNT n
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .range(streamKey, range, Limit.limit().count(config.getArchiveBatchSize()));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    RecordId id = record.getId();
+                    // 只归档已经确认的消息
+                    if (compare(id, minId) >= 0) {
+                        done = true;
+                        break;
+                    }
+                    // 3.写入一行 {"streamId":..., "userId":..., "voucherId":..., "id":...}
+                    Map<Object, Object> line = new LinkedHashMap<>(record.getValue().size() + 1);
+                    line.put("streamId", id.getValue());
+                    line.putAll(record.getValue());
+                    writer.write(JSONUtil.toJsonStr(line));
+                    writer.write('\n');
+                    last = id;
+                    archived++;
+                }
+                if (last != null) {
+                    range = Range.rightUnbounded(Range.Bound.inclusive(next(last).getValue()));
+                }
+            }
+        } catch (IOException e) {
+            // 归档失败时不能裁剪，否则消息会丢失
+            throw new UncheckedIOException(e);
+        }
+        // 4.文件写入成功后记录归档位置
+        if (last != null) {
+            stringRedisTemplate.opsForHash().put(SECKILL_STREAM_ARCHIVED_KEY, String.valueOf(partition), last.getValue());
+            log.debug("归档订单消息{}条，file={}", archived, file);
+        }
+    }
+
+    private static RecordId next(RecordId id) {
+        return RecordId.of(id.getTimestamp(), id.getSequence() + 1);
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+}
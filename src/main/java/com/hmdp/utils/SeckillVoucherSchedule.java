@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SCHEDULE_CHANNEL;
+
+/**
+ * 秒杀券时间窗口缓存：启动时从数据库加载 voucherId -> (开始时间, 结束时间)，
+ * 秒杀券变更时整体替换为新的不可变Map，并通过Redis发布订阅通知其他实例
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillVoucherSchedule {
+
+    /**
+     * 校验通过
+     */
+    public static final int IN_WINDOW = 0;
+    /**
+     * 秒杀尚未开始
+     */
+    public static final int NOT_STARTED = 4;
+    /**
+     * 秒杀已经结束
+     */
+    public static final int ENDED = 5;
+    /**
+     * 库存还没有预热到Redis，由下单脚本和本地库存配额返回，与秒杀时间窗口的返回码共用一套编号
+     */
+    public static final int NOT_PREHEATED = 6;
+    /**
+     * 本地时钟与Redis时钟的容忍偏差（毫秒），窗口边界附近的请求交给Redis按服务器时间精确判断
+     */
+    private static final long CLOCK_SKEW_MILLIS = 1000L;
+
+    private final ISeckillVoucherService seckillVoucherService;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final SeckillKeys seckillKeys;
+
+    private volatile Map<Long, long[]> windows = Collections.emptyMap();
+
+    public SeckillVoucherSchedule(ISeckillVoucherService seckillVoucherService, StringRedisTemplate stringRedisTemplate,
+                                  RedisMessageListenerContainer listenerContainer, SeckillKeys seckillKeys) {
+        this.seckillVoucherService = seckillVoucherService;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.seckillKeys = seckillKeys;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 1.加载所有秒杀券的时间窗口
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id", "begin_time", "end_time").list();
+        Map<Long, long[]> loaded = new HashMap<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            loaded.put(voucher.getVoucherId(), new long[]{toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime())});
+        }
+        windows = Collections.unmodifiableMap(loaded);
+        log.debug("加载秒杀券时间窗口{}个", loaded.size());
+        // 2.监听其他实例的变更，消息格式 voucherId:begin:end
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] arr = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            replace(Long.valueOf(arr[0]), Long.parseLong(arr[1]), Long.parseLong(arr[2]));
+        }, new ChannelTopic(SECKILL_SCHEDULE_CHANNEL));
+    }
+
+    /**
+     * 校验当前时间是否在秒杀时间窗口内，本地没有该秒杀券时放行，交给Redis中的窗口校验
+     * 本地校验只是预过滤，两端各放宽CLOCK_SKEW_MILLIS，最终以脚本中Redis服务器的时间为准
+     * @param voucherId 优惠券id
+     * @param now 当前时间戳（毫秒）
+     * @return IN_WINDOW、NOT_STARTED 或 ENDED
+     */
+    public int check(Long voucherId, long now) {
+        long[] window = windows.get(voucherId);
+        if (window == null) {
+            return IN_WINDOW;
+        }
+        if (now < window[0] - CLOCK_SKEW_MILLIS) {
+            return NOT_STARTED;
+        }
+        if (now > window[1] + CLOCK_SKEW_MILLIS) {
+            return ENDED;
+        }
+        return IN_WINDOW;
+    }
+
+    /**
+     * 更新秒杀券的时间窗口：写入Redis供lua脚本校验，更新本地缓存并通知其他实例
+     * @param voucherId 优惠券id
+     * @param beginTime 开始时间
+     * @param endTime 结束时间
+     * @param segments 库存分段数，窗口会写入优惠券用到的每个分区
+     */
+    public void update(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int segments) {
+        long begin = toMillis(beginTime);
+        long end = toMillis(endTime);
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(begin));
+        window.put("end", String.valueOf(end));
+        for (Integer partition : seckillKeys.partitionsOf(voucherId, segments)) {
+            stringRedisTemplate.opsForHash().putAll(seckillKeys.windowKey(voucherId, partition), window);
+        }
+        replace(voucherId, begin, end);
+        stringRedisTemplate.convertAndSend(SECKILL_SCHEDULE_CHANNEL, voucherId + ":" + begin + ":" + end);
+    }
+
+    private synchronized void replace(Long voucherId, long begin, long end) {
+        Map<Long, long[]> copy = new HashMap<>(windows);
+        copy.put(voucherId, new long[]{begin, end});
+        windows = Collections.unmodifiableMap(copy);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,232 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.SeckillPosition;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_ROOM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_VOUCHERS_KEY;
+
+/**
+ * 秒杀等候室：用户先取一个递增的排队号，后台按固定速率推进已放行到的号，
+ * 只有排队号不超过放行位置的用户才能执行秒杀脚本，把瞬时流量削成平稳的下单速率。
+ * 每个优惠券一个hash，与库存key在同一分区：
+ * <pre>
+ * seckill:room:{p}:voucherId  ticket -> 已发出的号, admitted -> 已放行到的号, u:userId -> 用户的号
+ * </pre>
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    /**
+     * 已放行
+     */
+    public static final int ADMITTED = 0;
+    /**
+     * 没有排队号
+     */
+    public static final int NO_TICKET = 7;
+    /**
+     * 排队中，尚未放行
+     */
+    public static final int WAITING = 8;
+
+    private static final String TICKET_FIELD = "ticket";
+    private static final String ADMITTED_FIELD = "admitted";
+    private static final String USER_FIELD_PREFIX = "u:";
+
+    private static final DefaultRedisScript<List> TICKET_SCRIPT;
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+
+    static {
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("room-ticket.lua"));
+        TICKET_SCRIPT.setResultType(List.class);
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("room-admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+    private final SeckillKeys seckillKeys;
+    private final SeckillVoucherSchedule seckillVoucherSchedule;
+    private final SeckillSoldOutRegistry seckillSoldOutRegistry;
+    private final RedissonClient redissonClient;
+
+    /**
+     * 本实例已经登记过的等候室，避免每次取号都执行SADD
+     */
+    private final Set<Long> registered = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService admitExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillWaitingRoom(StringRedisTemplate stringRedisTemplate, ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                              SeckillProperties seckillProperties, SeckillKeys seckillKeys,
+                              SeckillVoucherSchedule seckillVoucherSchedule, SeckillSoldOutRegistry seckillSoldOutRegistry,
+                              RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveStringRedisTemplate = reactiveStringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+        this.seckillKeys = seckillKeys;
+        this.seckillVoucherSchedule = seckillVoucherSchedule;
+        this.seckillSoldOutRegistry = seckillSoldOutRegistry;
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        long interval = seckillProperties.getRoom().getAdmitInterval().toMillis();
+        admitExecutor.scheduleWithFixedDelay(this::admitAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        admitExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.getRoom().isEnabled();
+    }
+
+    /**
+     * 取号，同一用户重复取号返回原来的号
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     */
+    @SuppressWarnings("unchecked")
+    public SeckillPosition takeTicket(Long voucherId, Long userId) {
+        // 1.登记等候室，由后台任务放行
+        if (registered.add(voucherId)) {
+            stringRedisTemplate.opsForSet().add(SECKILL_ROOM_VOUCHERS_KEY, voucherId.toString());
+        }
+        // 2.执行取号脚本
+        List<Long> result = stringRedisTemplate.execute(TICKET_SCRIPT,
+                Collections.singletonList(seckillKeys.roomKey(voucherId)),
+                USER_FIELD_PREFIX + userId, String.valueOf(seckillProperties.getRoom().getTtl().getSeconds()));
+        return toPosition(voucherId, result.get(0), result.get(1));
+    }
+
+    /**
+     * 查询排队位置，只需要一次HMGET
+     * @return 排队位置，没有取号时返回null
+     */
+    public SeckillPosition position(Long voucherId, Long userId) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(seckillKeys.roomKey(voucherId),
+                Arrays.asList(USER_FIELD_PREFIX + userId, ADMITTED_FIELD));
+        if (values.get(0) == null) {
+            return null;
+        }
+        return toPosition(voucherId, parse(values.get(0)), parse(values.get(1)));
+    }
+
+    /**
+     * 校验用户是否已经放行
+     * @return ADMITTED、NO_TICKET 或 WAITING
+     */
+    public int check(Long voucherId, Long userId) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(seckillKeys.roomKey(voucherId),
+                Arrays.asList(USER_FIELD_PREFIX + userId, ADMITTED_FIELD));
+        return check(values.get(0), values.get(1));
+    }
+
+    /**
+     * 非阻塞校验用户是否已经放行
+     */
+    public CompletableFuture<Integer> checkAsync(Long voucherId, Long userId) {
+        return reactiveStringRedisTemplate.<Object, Object>opsForHash()
+                .multiGet(seckillKeys.roomKey(voucherId), Arrays.asList(USER_FIELD_PREFIX + userId, ADMITTED_FIELD))
+                .map(values -> check(values.get(0), values.get(1)))
+                .toFuture();
+    }
+
+    private static int check(Object ticket, Object admitted) {
+        if (ticket == null) {
+            return NO_TICKET;
+        }
+        return parse(ticket) <= parse(admitted) ? ADMITTED : WAITING;
+    }
+
+    private SeckillPosition toPosition(Long voucherId, long ticket, long admitted) {
+        SeckillPosition position = new SeckillPosition();
+        position.setTicket(ticket);
+        position.setAdmitted(admitted);
+        position.setAhead(Math.max(0, ticket - admitted));
+        position.setSoldOut(seckillSoldOutRegistry.isSoldOut(voucherId));
+        return position;
+    }
+
+    private void admitAll() {
+        // 多个实例只需要一个推进放行位置，否则放行速率会成倍增加
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_ROOM_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Set<String> vouchers = stringRedisTemplate.opsForSet().members(SECKILL_ROOM_VOUCHERS_KEY);
+            if (vouchers == null || vouchers.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (String id : vouchers) {
+                try {
+                    admit(Long.valueOf(id), now);
+                } catch (Exception e) {
+                    log.error("等候室放行异常，voucherId={}", id, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void admit(Long voucherId, long now) {
+        int window = seckillVoucherSchedule.check(voucherId, now);
+        // 1.秒杀尚未开始，所有人继续排队
+        if (window == SeckillVoucherSchedule.NOT_STARTED) {
+            return;
+        }
+        // 2.秒杀已经结束，删除等候室
+        if (window == SeckillVoucherSchedule.ENDED) {
+            stringRedisTemplate.delete(seckillKeys.roomKey(voucherId));
+            stringRedisTemplate.opsForSet().remove(SECKILL_ROOM_VOUCHERS_KEY, voucherId.toString());
+            registered.remove(voucherId);
+            return;
+        }
+        // 3.按配置的速率放行一批
+        SeckillProperties.Room config = seckillProperties.getRoom();
+        long batch = Math.max(1L, config.getAdmitRate() * config.getAdmitInterval().toMillis() / 1000);
+        stringRedisTemplate.execute(ADMIT_SCRIPT, Collections.singletonList(seckillKeys.roomKey(voucherId)),
+                String.valueOf(batch));
+    }
+
+    private static long parse(Object value) {
+        return value == null ? 0L : Long.parseLong(value.toString());
+    }
+}
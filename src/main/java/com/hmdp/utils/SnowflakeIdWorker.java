@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 雪花算法ID生成器：启动时从Redis租借一个workerId并定时续约，之后ID完全在本地生成。
+ * 结构为 41位毫秒时间戳 | 10位workerId | 12位序列号
+ *
+ * @author pht
+ * @since 2022-06
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    /**
+     * 开始时间戳（毫秒），与RedisIdWorker一致
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker-renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IdWorkerProperties idWorkerProperties;
+
+    /**
+     * 租约标识，续约时校验租约仍属于当前实例
+     */
+    private final String leaseToken = UUID.randomUUID().toString(true);
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 当前租到的workerId，-1表示没有有效租约
+     */
+    private volatile int workerId = -1;
+    /**
+     * 租约到期时间，超过后即使续约没有报错也停止发号，防止与接手该workerId的实例重复
+     */
+    private volatile long leaseExpireAt;
+    private long lastTimestamp = -1L;
+    private long sequence = 0L;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, IdWorkerProperties idWorkerProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.idWorkerProperties = idWorkerProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 没有业务使用雪花模式时不租借workerId
+        if (!idWorkerProperties.usesMode("snowflake")) {
+            return;
+        }
+        lease();
+        long interval = idWorkerProperties.getWorkerLeaseTtl().toMillis() / 3;
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        int id = workerId;
+        if (id >= 0) {
+            // 主动释放workerId，和unlock.lua一样只删除自己的租约
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + id), leaseToken);
+        }
+    }
+
+    public synchronized long nextId() {
+        int id = workerId;
+        long timestamp = System.currentTimeMillis();
+        if (id < 0 || timestamp >= leaseExpireAt) {
+            throw new IllegalStateException("没有可用的workerId");
+        }
+        // 1.处理时钟回拨：小幅回拨等待追上，超过阈值直接拒绝，避免生成重复ID
+        if (timestamp < lastTimestamp) {
+            long backward = lastTimestamp - timestamp;
+            if (backward > idWorkerProperties.getMaxClockBackward().toMillis()) {
+                throw new IllegalStateException("时钟回拨" + backward + "ms，拒绝生成ID");
+            }
+            timestamp = waitUntil(lastTimestamp);
+        }
+        // 2.同一毫秒内序列号自增，用完后等到下一毫秒
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                timestamp = waitUntil(lastTimestamp + 1);
+            }
+        } else {
+            sequence = 0L;
+        }
+        lastTimestamp = timestamp;
+        // 3.拼接并返回
+        return (timestamp - BEGIN_TIMESTAMP) << (WORKER_ID_BITS + SEQUENCE_BITS)
+                | (long) id << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private static long waitUntil(long target) {
+        long timestamp = System.currentTimeMillis();
+        while (timestamp < target) {
+            Thread.yield();
+            timestamp = System.currentTimeMillis();
+        }
+        return timestamp;
+    }
+
+    private void lease() {
+        long ttl = idWorkerProperties.getWorkerLeaseTtl().getSeconds();
+        for (int id = 0; id <= MAX_WORKER_ID; id++) {
+            long leaseAt = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, leaseToken, ttl, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                leaseExpireAt = leaseAt + ttl * 1000;
+                workerId = id;
+                log.info("租借workerId成功，workerId={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("workerId已经全部被占用");
+    }
+
+    private void heartbeat() {
+        int id = workerId;
+        try {
+            if (id >= 0) {
+                long renewAt = System.currentTimeMillis();
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + id),
+                        leaseToken, String.valueOf(idWorkerProperties.getWorkerLeaseTtl().getSeconds()));
+                if (renewed != null && renewed == 1L) {
+                    leaseExpireAt = renewAt + idWorkerProperties.getWorkerLeaseTtl().toMillis();
+                    return;
+                }
+                // 租约已经丢失（例如长时间GC或网络中断），workerId可能已被其他实例使用，立即停止发号
+                log.error("workerId租约丢失，workerId={}", id);
+                workerId = -1;
+            }
+            // 重新租借一个workerId
+            lease();
+        } catch (Exception e) {
+            log.error("workerId续约异常，workerId={}", id, e);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+-- 布隆过滤器添加元素：把元素的k个哈希位置设为1
+-- KEYS[1] 位图key，ARGV 各个哈希位置
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1)
+end
+return 1
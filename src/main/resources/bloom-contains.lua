@@ -0,0 +1,8 @@
+-- 布隆过滤器判断元素是否可能存在：k个哈希位置都为1才可能存在，有一个为0就一定不存在
+-- KEYS[1] 位图key，ARGV 各个哈希位置
+for i = 1, #ARGV do
+    if(redis.call('getbit', KEYS[1], ARGV[i]) == 0) then
+        return 0
+    end
+end
+return 1
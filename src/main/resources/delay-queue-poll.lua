@@ -0,0 +1,19 @@
+-- 取出到期的延时任务：按score（到期时间）只读取前limit个，不扫描整个队列，
+-- 同时把它们的到期时间推迟到retryAt，处理完成后由调用方删除，处理失败或实例宕机时到期后重新取出
+-- 1.参数列表
+-- 1.1.延时队列key
+local queueKey = KEYS[1]
+-- 1.2.当前时间
+local now = ARGV[1]
+-- 1.3.最多取出的条数
+local limit = tonumber(ARGV[2])
+-- 1.4.重新投递的时间
+local retryAt = ARGV[3]
+
+-- 2.zrangebyscore queueKey -inf now limit 0 limit
+local members = redis.call('zrangebyscore', queueKey, '-inf', now, 'limit', 0, limit)
+-- 3.推迟到期时间，其他实例不会重复取出
+for i = 1, #members do
+    redis.call('zadd', queueKey, retryAt, members[i])
+end
+return members
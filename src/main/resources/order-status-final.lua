@@ -0,0 +1,23 @@
+-- 写入订单最终状态，只有存在等待中的SSE连接时才广播
+-- 1.参数列表
+-- 1.1.订单状态key
+local key = KEYS[1]
+-- 1.2.最终状态
+local status = ARGV[1]
+-- 1.3.有效期（秒）
+local ttl = tonumber(ARGV[2])
+-- 1.4.广播的频道和消息
+local channel = ARGV[3]
+local message = ARGV[4]
+
+-- 2.写入最终状态
+redis.call('hset', key, 'status', status)
+redis.call('expire', key, ttl)
+-- 3.判断是否有SSE连接在等待
+local watchers = tonumber(redis.call('hget', key, 'watchers'))
+if(watchers == nil or watchers <= 0) then
+    return 0
+end
+-- 4.广播最终状态
+redis.call('publish', channel, message)
+return 1
@@ -0,0 +1,14 @@
+-- 记录订单已进入队列，同时记录下单用户，查询状态时校验订单归属
+-- 1.参数列表
+-- 1.1.订单状态key
+local key = KEYS[1]
+-- 1.2.下单用户id
+local userId = ARGV[1]
+-- 1.3.有效期（秒）
+local ttl = tonumber(ARGV[2])
+
+-- 2.不覆盖已经写入的最终状态
+redis.call('hsetnx', key, 'status', 'queued')
+redis.call('hset', key, 'userId', userId)
+redis.call('expire', key, ttl)
+return 1
@@ -0,0 +1,11 @@
+-- 增减订单状态的SSE连接数，状态已经过期时不处理，避免留下没有有效期的key
+-- 1.参数列表
+-- 1.1.订单状态key
+local key = KEYS[1]
+-- 1.2.增加的数量，1 注册连接，-1 连接结束
+local delta = tonumber(ARGV[1])
+
+if(redis.call('exists', key) == 0) then
+    return 0
+end
+return redis.call('hincrby', key, 'watchers', delta)
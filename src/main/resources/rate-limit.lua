@@ -0,0 +1,31 @@
+-- 令牌桶限流，每个桶是一个hash：tokens 剩余令牌数，ts 上次补充令牌的时间
+-- 1.参数列表
+-- 1.1.桶key
+local key = KEYS[1]
+-- 1.2.每秒补充的令牌数
+local rate = tonumber(ARGV[1])
+-- 1.3.桶容量（允许的突发请求数）
+local capacity = tonumber(ARGV[2])
+-- 1.4.当前时间戳（毫秒），使用Redis服务器的时间，不受应用服务器时钟偏差影响
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.按经过的时间补充令牌，不超过容量
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+if(now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+-- 3.取一个令牌
+local allowed = 0
+if(tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+-- 4.保存桶，桶补满所需的时间之后自动过期
+redis.call('hset', key, 'tokens', tostring(tokens), 'ts', tostring(ts))
+redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+return allowed
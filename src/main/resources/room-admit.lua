@@ -0,0 +1,10 @@
+-- 放行一批排队的用户，最多放行到已发出的号，返回已放行到的号
+local roomKey = KEYS[1]
+local ticket = tonumber(redis.call('hget', roomKey, 'ticket') or 0)
+local admitted = tonumber(redis.call('hget', roomKey, 'admitted') or 0)
+if(admitted >= ticket) then
+    return admitted
+end
+admitted = math.min(ticket, admitted + tonumber(ARGV[1]))
+redis.call('hset', roomKey, 'admitted', admitted)
+return admitted
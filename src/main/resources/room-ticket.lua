@@ -0,0 +1,18 @@
+-- 进入等候室：同一用户重复进入时返回原来的号，返回 {排队号, 已放行到的号}
+-- 1.参数列表
+-- 1.1.等候室key，hash中 ticket 已发出的号，admitted 已放行到的号，u:userId 用户的号
+local roomKey = KEYS[1]
+-- 1.2.用户字段
+local userField = ARGV[1]
+-- 1.3.等候室的有效期（秒）
+local ttl = tonumber(ARGV[2])
+
+-- 2.判断用户是否已经取过号
+local ticket = redis.call('hget', roomKey, userField)
+if(not ticket) then
+    -- 3.取号 hincrby roomKey ticket 1
+    ticket = redis.call('hincrby', roomKey, 'ticket', 1)
+    redis.call('hset', roomKey, userField, ticket)
+    redis.call('expire', roomKey, ttl)
+end
+return {tonumber(ticket), tonumber(redis.call('hget', roomKey, 'admitted') or 0)}
@@ -0,0 +1,37 @@
+-- 本地库存配额模式下的下单脚本，库存已在JVM内扣减，这里只做一人一单校验和发送消息
+-- 1.参数列表
+-- 1.1.订单key
+local orderKey = KEYS[1]
+-- 1.2.时间窗口key
+local windowKey = KEYS[2]
+-- 1.3.订单stream key，与订单key带有相同的hash tag
+local streamKey = KEYS[3]
+-- 1.4.优惠券id
+local voucherId = ARGV[1]
+-- 1.5.用户id
+local userId = ARGV[2]
+-- 1.6.订单id
+local orderId = ARGV[3]
+-- 1.7.当前时间戳（毫秒），使用Redis服务器的时间，不受应用服务器时钟偏差影响
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.0.判断是否在秒杀时间窗口内，没有窗口信息时不校验
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and now < tonumber(window[1])) then
+    return 4
+end
+if(window[2] and now > tonumber(window[2])) then
+    return 5
+end
+-- 2.判断用户是否下单 SISMEMBER orderKey userId
+if(redis.call('sismember', orderKey, userId) == 1) then
+    -- 2.1.存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.下单（保存用户）sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 4.发送消息到队列中， XADD streamKey * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,53 @@
+-- 分段库存下单脚本，只操作用户所属分段的key
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.订单key（用户所属分段的去重集合）
+local orderKey = KEYS[2]
+-- 1.3.时间窗口key
+local windowKey = KEYS[3]
+-- 1.4.订单stream key，与分段key带有相同的hash tag
+local streamKey = KEYS[4]
+-- 1.5.优惠券id
+local voucherId = ARGV[1]
+-- 1.6.用户id
+local userId = ARGV[2]
+-- 1.7.订单id
+local orderId = ARGV[3]
+-- 1.8.当前时间戳（毫秒），使用Redis服务器的时间，不受应用服务器时钟偏差影响
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.0.判断是否在秒杀时间窗口内，没有窗口信息时不校验
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and now < tonumber(window[1])) then
+    return 4
+end
+if(window[2] and now > tonumber(window[2])) then
+    return 5
+end
+-- 2.判断本分段库存是否已经预热
+local stock = redis.call('get', stockKey)
+if(not stock) then
+    -- 库存还没有预热到Redis，返回6
+    return 6
+end
+-- 2.1.判断用户是否下单 SISMEMBER orderKey userId
+if(redis.call('sismember', orderKey, userId) == 1) then
+    -- 2.2.存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.判断本分段库存是否充足
+if(tonumber(stock) <= 0) then
+    -- 3.1.库存不足，先占住去重名额，返回3，由调用方到相邻分段借库存
+    redis.call('sadd', orderKey, userId)
+    return 3
+end
+-- 4.扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 5.下单（保存用户）sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 6.发送消息到队列中， XADD streamKey * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
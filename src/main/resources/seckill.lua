@@ -1,20 +1,42 @@
 -- 1.参数列表
--- 1.1.优惠券id
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.订单key
+local orderKey = KEYS[2]
+-- 1.3.时间窗口key
+local windowKey = KEYS[3]
+-- 1.4.订单stream key
+-- 所有key都由调用方传入并带有相同的hash tag，在Redis Cluster中属于同一个slot
+local streamKey = KEYS[4]
+-- 1.5.优惠券id
 local voucherId = ARGV[1]
--- 1.2.用户id
+-- 1.6.用户id
 local userId = ARGV[2]
--- 1.3.订单id
+-- 1.7.订单id
 local orderId = ARGV[3]
-
--- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 1.8.当前时间戳（毫秒），使用Redis服务器的时间，不受应用服务器时钟偏差影响
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
 
 -- 3.脚本业务
+-- 3.0.判断是否在秒杀时间窗口内，没有窗口信息时不校验
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and now < tonumber(window[1])) then
+    -- 尚未开始，返回4
+    return 4
+end
+if(window[2] and now > tonumber(window[2])) then
+    -- 已经结束，返回5
+    return 5
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = redis.call('get', stockKey)
+if(not stock) then
+    -- 库存还没有预热到Redis，返回6
+    return 6
+end
+if(tonumber(stock) <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
@@ -27,6 +49,6 @@ end
 redis.call('incrby', stockKey, -1)
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.6.发送消息到队列中， XADD streamKey * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
 return 0
\ No newline at end of file
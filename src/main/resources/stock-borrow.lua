@@ -0,0 +1,22 @@
+-- 从相邻分段借一个库存，借到后在同一个脚本中发送订单消息，成功返回1，库存不足返回0
+-- 1.参数列表
+-- 1.1.相邻分段的库存key
+local stockKey = KEYS[1]
+-- 1.2.订单stream key，与相邻分段的库存key带有相同的hash tag
+local streamKey = KEYS[2]
+-- 1.3.优惠券id
+local voucherId = ARGV[1]
+-- 1.4.用户id
+local userId = ARGV[2]
+-- 1.5.订单id
+local orderId = ARGV[3]
+
+-- 2.判断库存是否充足
+if(tonumber(redis.call('get', stockKey) or 0) <= 0) then
+    return 0
+end
+-- 3.扣库存
+redis.call('incrby', stockKey, -1)
+-- 4.发送消息到队列中， XADD streamKey * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 1
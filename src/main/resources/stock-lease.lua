@@ -0,0 +1,24 @@
+-- 从Redis库存中批量租借库存，返回实际租到的数量，库存还没有预热到Redis时返回-1
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.期望租借的数量
+local chunk = tonumber(ARGV[1])
+
+-- 2.判断库存是否充足
+local stock = redis.call('get', stockKey)
+if(not stock) then
+    -- 库存还没有预热到Redis，返回-1
+    return -1
+end
+stock = tonumber(stock)
+if(stock <= 0) then
+    return 0
+end
+-- 3.库存不够一整批时，有多少租多少
+if(stock < chunk) then
+    chunk = stock
+end
+-- 4.扣库存 decrby stockKey chunk
+redis.call('decrby', stockKey, chunk)
+return chunk
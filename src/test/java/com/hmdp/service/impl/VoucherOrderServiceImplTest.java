@@ -0,0 +1,114 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VoucherOrderServiceImplTest {
+
+    private static final String DEAD_LETTER_ID = "1650000000000-0";
+
+    private StreamOperations<String, Object, Object> streamOperations;
+    private SeckillOrderStatus seckillOrderStatus;
+    private SeckillKeys seckillKeys;
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        streamOperations = mock(StreamOperations.class);
+        when(stringRedisTemplate.<Object, Object>opsForStream()).thenReturn(streamOperations);
+        seckillOrderStatus = mock(SeckillOrderStatus.class);
+        seckillKeys = new SeckillKeys(new SeckillProperties(), new RedisProperties());
+        voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillOrderStatus", seckillOrderStatus);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void replayDeadLetterRequeuesOrderAndDeletesDeadLetter() {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("userId", "1010");
+        value.put("voucherId", "10");
+        value.put("id", "123456");
+        value.put("error", "timeout");
+        deadLetter(value);
+        when(streamOperations.add(eq(seckillKeys.streamKey(0)), anyMap())).thenReturn(RecordId.of("1650000000001-0"));
+
+        Result result = voucherOrderService.replayDeadLetter(0, DEAD_LETTER_ID);
+
+        assertTrue(result.getSuccess());
+        assertEquals("1650000000001-0", result.getData());
+        // 只按原始的三个字段重新发送，不带失败原因
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", "1010");
+        order.put("voucherId", "10");
+        order.put("id", "123456");
+        verify(streamOperations).add(seckillKeys.streamKey(0), order);
+        verify(seckillOrderStatus).requeue(123456L, 1010L);
+        verify(streamOperations).delete(seckillKeys.deadLetterKey(0), DEAD_LETTER_ID);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void replayDeadLetterMissingFieldFailsWithoutThrowing() {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("userId", "1010");
+        value.put("voucherId", "10");
+        deadLetter(value);
+
+        Result result = voucherOrderService.replayDeadLetter(0, DEAD_LETTER_ID);
+
+        assertFalse(result.getSuccess());
+        // 缺字段的死信保留在死信队列中
+        verify(streamOperations, never()).add(anyString(), anyMap());
+        verify(streamOperations, never()).delete(anyString(), any(String[].class));
+        verify(seckillOrderStatus, never()).requeue(any(), any());
+    }
+
+    @Test
+    void replayDeadLetterRejectsUnknownPartitionAndBlankId() {
+        assertFalse(voucherOrderService.replayDeadLetter(1, DEAD_LETTER_ID).getSuccess());
+        assertFalse(voucherOrderService.replayDeadLetter(0, " ").getSuccess());
+        assertFalse(voucherOrderService.replayDeadLetter(0, DEAD_LETTER_ID).getSuccess());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deadLetter(Map<Object, Object> value) {
+        MapRecord<String, Object, Object> record = StreamRecords.<String, Object, Object>mapBacked(value)
+                .withStreamKey(seckillKeys.deadLetterKey(0))
+                .withId(RecordId.of(DEAD_LETTER_ID));
+        when(streamOperations.range(eq(seckillKeys.deadLetterKey(0)), any(Range.class)))
+                .thenReturn(Collections.singletonList(record));
+    }
+}
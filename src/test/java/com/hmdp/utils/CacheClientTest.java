@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheClientTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private ValueOperations<String, String> valueOperations;
+    private StringRedisConnection connection;
+    private CacheClient cacheClient;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        connection = mock(StringRedisConnection.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        // pipeline中的命令直接交给mock的连接执行
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            ((RedisCallback<Object>) invocation.getArgument(0)).doInRedis(connection);
+            return Collections.emptyList();
+        });
+        cacheClient = new CacheClient(stringRedisTemplate, mock(RedisMessageListenerContainer.class), new CacheProperties());
+    }
+
+    @Test
+    void queryBatchKeepsInputOrderAndWritesNullMarkers() {
+        // 3命中缓存，7命中空值，1和9未命中，数据库中只有1
+        when(valueOperations.multiGet(anyList())).thenReturn(
+                Arrays.asList(JSONUtil.toJsonStr(shop(3L)), "", null, null));
+        List<List<Long>> dbQueries = new ArrayList<>();
+
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, Arrays.asList(3L, 7L, 1L, 9L), Shop.class, ids -> {
+            dbQueries.add(new ArrayList<>(ids));
+            return Collections.singletonList(shop(1L));
+        }, Shop::getId, 30L, TimeUnit.MINUTES);
+
+        // 结果按输入顺序返回，不存在的id不出现在结果中
+        assertEquals(Arrays.asList(3L, 1L), shops.stream().map(Shop::getId).collect(Collectors.toList()));
+        // 只有未命中的id查询数据库，且只查询一次
+        assertEquals(Collections.singletonList(Arrays.asList(1L, 9L)), dbQueries);
+        // 数据库中存在的写回缓存，不存在的写入空值
+        long ttl = TimeUnit.MINUTES.toMillis(30);
+        long nullTtl = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        verify(connection).pSetEx(eq(CACHE_SHOP_KEY + 1), longBetween(ttl, ttl * 11 / 10), eq(JSONUtil.toJsonStr(shop(1L))));
+        verify(connection).pSetEx(eq(CACHE_SHOP_KEY + 9), longBetween(nullTtl, nullTtl * 11 / 10), eq(""));
+        verify(connection, never()).pSetEx(eq(CACHE_SHOP_KEY + 3), anyLong(), anyString());
+        verify(connection, never()).pSetEx(eq(CACHE_SHOP_KEY + 7), anyLong(), anyString());
+    }
+
+    @Test
+    void queryBatchSkipsDatabaseWhenAllCached() {
+        when(valueOperations.multiGet(anyList())).thenReturn(Arrays.asList("", JSONUtil.toJsonStr(shop(2L))));
+
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_KEY, Arrays.asList(5L, 2L), Shop.class, ids -> {
+            throw new AssertionError("全部命中时不应查询数据库");
+        }, Shop::getId, 30L, TimeUnit.MINUTES);
+
+        assertEquals(1, shops.size());
+        assertEquals(2L, shops.get(0).getId());
+        verify(stringRedisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+
+    @Test
+    void queryWithMutexCoalescesConcurrentRebuilds() throws Exception {
+        CacheProperties cacheProperties = new CacheProperties();
+        // leader查询数据库的耗时超过waitTimeout，等待的线程仍然应该拿到leader的结果，而不是各自查询数据库
+        cacheProperties.getRebuild().setWaitTimeout(Duration.ofMillis(100));
+        cacheProperties.getRebuild().setLoadTimeout(Duration.ofSeconds(2));
+        cacheClient = new CacheClient(stringRedisTemplate, mock(RedisMessageListenerContainer.class), cacheProperties);
+        Map<String, String> redis = mockRedisStrings();
+        AtomicInteger dbCalls = new AtomicInteger();
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Shop>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return cacheClient.queryWithMutex(CACHE_SHOP_KEY, 1L, Shop.class, id -> {
+                        dbCalls.incrementAndGet();
+                        sleep(300);
+                        return shop(id);
+                    }, 30L, TimeUnit.MINUTES);
+                }));
+            }
+            start.countDown();
+            List<Shop> shops = new ArrayList<>(threads);
+            for (Future<Shop> future : futures) {
+                shops.add(future.get(5, TimeUnit.SECONDS));
+            }
+            // 只查询一次数据库，所有调用方拿到相同内容的不同对象
+            assertEquals(1, dbCalls.get());
+            for (Shop shop : shops) {
+                assertEquals(1L, shop.getId());
+            }
+            assertNotSame(shops.get(0), shops.get(1));
+            assertEquals(JSONUtil.toJsonStr(shop(1L)), redis.get(CACHE_SHOP_KEY + 1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void queryWithMutexWritesNullMarkerForMissingRow() {
+        Map<String, String> redis = mockRedisStrings();
+
+        Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY, 404L, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+
+        assertNull(shop);
+        assertEquals("", redis.get(CACHE_SHOP_KEY + 404));
+    }
+
+    /**
+     * 用一个Map模拟Redis的字符串读写和SETNX，锁的释放不需要模拟
+     */
+    private Map<String, String> mockRedisStrings() {
+        Map<String, String> redis = new ConcurrentHashMap<>();
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> redis.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> redis.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenAnswer(invocation ->
+                redis.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)) == null);
+        return redis;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long longBetween(long min, long max) {
+        return longThat(v -> v >= min && v <= max);
+    }
+
+    private static Shop shop(Long id) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("shop-" + id);
+        return shop;
+    }
+}
@@ -0,0 +1,212 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 秒杀lua脚本返回码测试，需要本地Redis（-Dredis.host、-Dredis.port，默认127.0.0.1:6379），连接不上时跳过
+ */
+class SeckillScriptTest {
+
+    private static final String STOCK_KEY = "test:seckill:stock:{0}:1";
+    private static final String ORDER_KEY = "test:seckill:order:{0}:1";
+    private static final String WINDOW_KEY = "test:seckill:window:{0}:1";
+    private static final String STREAM_KEY = "test:stream.orders:{0}";
+    private static final String STATUS_KEY = "test:seckill:order:status:1";
+
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate stringRedisTemplate;
+
+    @BeforeAll
+    static void connect() {
+        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "127.0.0.1"), Integer.getInteger("redis.port", 6379));
+        connectionFactory = new LettuceConnectionFactory(config);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        boolean available;
+        try {
+            available = "PONG".equals(stringRedisTemplate.execute(
+                    (RedisCallback<String>) connection -> connection.ping()));
+        } catch (Exception e) {
+            available = false;
+        }
+        assumeTrue(available, "Redis不可用，跳过lua脚本测试");
+    }
+
+    @AfterAll
+    static void disconnect() {
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+    }
+
+    @AfterEach
+    void cleanUp() {
+        stringRedisTemplate.delete(Arrays.asList(STOCK_KEY, ORDER_KEY, WINDOW_KEY, STREAM_KEY, STATUS_KEY));
+    }
+
+    @Test
+    void seckillReturnsNotPreheatedWhenStockKeyMissing() {
+        assertEquals(6L, seckill("seckill.lua", "1001"));
+        // 没有预热时不占用下单资格
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(ORDER_KEY, "1001")));
+    }
+
+    @Test
+    void seckillReturnsSoldOutAndDuplicate() {
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "1");
+        assertEquals(0L, seckill("seckill.lua", "1001"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(STOCK_KEY));
+        assertEquals(1L, stringRedisTemplate.opsForStream().size(STREAM_KEY));
+        assertEquals(1L, seckill("seckill.lua", "1002"));
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "1");
+        assertEquals(2L, seckill("seckill.lua", "1001"));
+    }
+
+    @Test
+    void segmentReturnsNotPreheatedWhenStockKeyMissing() {
+        assertEquals(6L, seckill("seckill-segment.lua", "1001"));
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(ORDER_KEY, "1001")));
+    }
+
+    @Test
+    void segmentReturnsBorrowWhenSegmentSoldOut() {
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "0");
+        // 本分段库存不足时占住去重名额，由调用方向相邻分段借库存
+        assertEquals(3L, seckill("seckill-segment.lua", "1001"));
+        assertTrue(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(ORDER_KEY, "1001")));
+    }
+
+    @Test
+    void borrowDeductsStockAndSendsOrderAtomically() {
+        // 相邻分段没有库存时不发送消息
+        assertEquals(0L, borrow("1001"));
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "0");
+        assertEquals(0L, borrow("1001"));
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_KEY)));
+        // 借到库存时扣减库存并发送订单消息
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "1");
+        assertEquals(1L, borrow("1001"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(STOCK_KEY));
+        assertEquals(1L, stringRedisTemplate.opsForStream().size(STREAM_KEY));
+    }
+
+    @Test
+    void leaseDistinguishesMissingKeyFromSoldOut() {
+        assertEquals(-1L, lease(10));
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "0");
+        assertEquals(0L, lease(10));
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "5");
+        assertEquals(5L, lease(10));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(STOCK_KEY));
+    }
+
+    @Test
+    void scriptsCheckWindowWithRedisTime() {
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, "10");
+        long now = redisTime();
+        // 尚未开始
+        window(now + 60_000, now + 120_000);
+        assertEquals(4L, seckill("seckill.lua", "1001"));
+        assertEquals(4L, seckill("seckill-segment.lua", "1001"));
+        assertEquals(4L, quota("1001"));
+        // 已经结束
+        window(now - 120_000, now - 60_000);
+        assertEquals(5L, seckill("seckill.lua", "1001"));
+        assertEquals(5L, seckill("seckill-segment.lua", "1001"));
+        assertEquals(5L, quota("1001"));
+        // 时间窗口内
+        window(now - 60_000, now + 60_000);
+        assertEquals(0L, seckill("seckill.lua", "1001"));
+        assertEquals(0L, quota("1002"));
+        assertEquals("9", stringRedisTemplate.opsForValue().get(STOCK_KEY));
+    }
+
+    @Test
+    void orderStatusPublishesOnlyWithWatchers() {
+        // 状态过期后不再记录连接数，避免留下没有有效期的key
+        assertEquals(0L, watch("1"));
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(STATUS_KEY)));
+        stringRedisTemplate.execute(script("order-status-queued.lua"), Collections.singletonList(STATUS_KEY), "1010", "60");
+        assertEquals("queued", stringRedisTemplate.opsForHash().get(STATUS_KEY, "status"));
+        assertEquals("1010", stringRedisTemplate.opsForHash().get(STATUS_KEY, "userId"));
+        // 没有连接等待时只写状态不广播
+        assertEquals(0L, finalStatus("persisted"));
+        assertEquals("persisted", stringRedisTemplate.opsForHash().get(STATUS_KEY, "status"));
+        // 已经写入的最终状态不会被queued覆盖
+        stringRedisTemplate.execute(script("order-status-queued.lua"), Collections.singletonList(STATUS_KEY), "1010", "60");
+        assertEquals("persisted", stringRedisTemplate.opsForHash().get(STATUS_KEY, "status"));
+        // 有连接等待时广播，连接结束后不再广播
+        assertEquals(1L, watch("1"));
+        assertEquals(1L, finalStatus("failed"));
+        assertEquals(0L, watch("-1"));
+        assertEquals(0L, finalStatus("failed"));
+    }
+
+    private static Long watch(String delta) {
+        return stringRedisTemplate.execute(script("order-status-watch.lua"), Collections.singletonList(STATUS_KEY), delta);
+    }
+
+    private static Long finalStatus(String status) {
+        return stringRedisTemplate.execute(script("order-status-final.lua"), Collections.singletonList(STATUS_KEY),
+                status, "60", "test:seckill:order:status", "1:" + status);
+    }
+
+    private static long redisTime() {
+        Long time = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.time());
+        return time == null ? System.currentTimeMillis() : time;
+    }
+
+    private static void window(long begin, long end) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(begin));
+        window.put("end", String.valueOf(end));
+        stringRedisTemplate.opsForHash().putAll(WINDOW_KEY, window);
+    }
+
+    private static Long quota(String userId) {
+        return stringRedisTemplate.execute(script("seckill-quota.lua"),
+                Arrays.asList(ORDER_KEY, WINDOW_KEY, STREAM_KEY), "1", userId, "100" + userId);
+    }
+
+    private static Long seckill(String script, String userId) {
+        return stringRedisTemplate.execute(script(script),
+                Arrays.asList(STOCK_KEY, ORDER_KEY, WINDOW_KEY, STREAM_KEY), "1", userId, "100" + userId);
+    }
+
+    private static Long borrow(String userId) {
+        return stringRedisTemplate.execute(script("stock-borrow.lua"),
+                Arrays.asList(STOCK_KEY, STREAM_KEY), "1", userId, "100" + userId);
+    }
+
+    private static Long lease(int chunk) {
+        return stringRedisTemplate.execute(script("stock-lease.lua"),
+                Collections.singletonList(STOCK_KEY), String.valueOf(chunk));
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+}